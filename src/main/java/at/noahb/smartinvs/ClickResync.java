@@ -0,0 +1,110 @@
+package at.noahb.smartinvs;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.inventory.ClickType;
+import org.bukkit.event.inventory.InventoryAction;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.inventory.InventoryView;
+import org.bukkit.inventory.PlayerInventory;
+
+import java.util.Arrays;
+
+/**
+ * Slots of a player which may have been desynchronized by cancelled clicks during the current tick,
+ * resent once at the end of the tick.
+ */
+class ClickResync {
+
+    // Main inventory slots between the top inventory and the hotbar in the raw slots of a view
+    private static final int MAIN_INVENTORY_SIZE = 27;
+
+    private final Player player;
+
+    private final long[] rawSlots = new long[2];
+    private boolean cursor;
+    private boolean offHand;
+    private boolean full;
+
+    private boolean pending;
+
+    ClickResync(Player player) {
+        this.player = player;
+    }
+
+    /**
+     * Records the slots a cancelled click could have desynchronized
+     * @return true if the resync was not pending yet for the current tick
+     */
+    boolean record(InventoryClickEvent e, boolean fullResync) {
+        InventoryAction action = e.getAction();
+
+        // The client may have predicted changes anywhere in its inventory for these
+        if (fullResync || action == InventoryAction.MOVE_TO_OTHER_INVENTORY
+                || action == InventoryAction.COLLECT_TO_CURSOR)
+            this.full = true;
+        else {
+            addRawSlot(e.getRawSlot());
+            this.cursor = true;
+
+            if (e.getClick() == ClickType.NUMBER_KEY && e.getHotbarButton() >= 0) {
+                int topSize = e.getView().getTopInventory().getSize();
+                addRawSlot(topSize + MAIN_INVENTORY_SIZE + e.getHotbarButton());
+            }
+
+            if (e.getClick() == ClickType.SWAP_OFFHAND)
+                this.offHand = true;
+        }
+
+        if (pending)
+            return false;
+
+        this.pending = true;
+        return true;
+    }
+
+    void apply() {
+        try {
+            if (full) {
+                player.updateInventory();
+                return;
+            }
+
+            InventoryView view = player.getOpenInventory();
+            int slotCount = view.countSlots();
+
+            for (int i = 0; i < rawSlots.length; i++) {
+                long word = rawSlots[i];
+
+                while (word != 0) {
+                    int rawSlot = (i << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+
+                    if (rawSlot < slotCount)
+                        view.setItem(rawSlot, view.getItem(rawSlot));
+                }
+            }
+
+            if (cursor)
+                player.setItemOnCursor(player.getItemOnCursor());
+
+            if (offHand) {
+                PlayerInventory inventory = player.getInventory();
+                inventory.setItemInOffHand(inventory.getItemInOffHand());
+            }
+        } finally {
+            Arrays.fill(rawSlots, 0);
+            this.cursor = false;
+            this.offHand = false;
+            this.full = false;
+            this.pending = false;
+        }
+    }
+
+    private void addRawSlot(int rawSlot) {
+        if (rawSlot < 0 || rawSlot >= rawSlots.length << 6)
+            return;
+
+        rawSlots[rawSlot >>> 6] |= 1L << rawSlot;
+    }
+
+}
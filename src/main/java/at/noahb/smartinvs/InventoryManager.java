@@ -4,8 +4,10 @@ import at.noahb.smartinvs.content.InventoryContents;
 import at.noahb.smartinvs.opener.ChestInventoryOpener;
 import at.noahb.smartinvs.opener.InventoryOpener;
 import at.noahb.smartinvs.opener.SpecialInventoryOpener;
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
+import org.bukkit.event.Event;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
@@ -14,34 +16,87 @@ import org.bukkit.event.inventory.InventoryAction;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryCloseEvent;
 import org.bukkit.event.inventory.InventoryDragEvent;
+import org.bukkit.event.inventory.InventoryEvent;
 import org.bukkit.event.inventory.InventoryOpenEvent;
 import org.bukkit.event.inventory.InventoryType;
+import org.bukkit.event.player.PlayerEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.server.PluginDisableEvent;
 import org.bukkit.inventory.Inventory;
+import org.bukkit.plugin.IllegalPluginAccessException;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Level;
 
 public class InventoryManager {
 
+    // Listener indices of the event types dispatched by the InvListener
+    static final int CLICK_LISTENERS = 0;
+    static final int DRAG_LISTENERS = 1;
+    static final int OPEN_LISTENERS = 2;
+    static final int CLOSE_LISTENERS = 3;
+    static final int QUIT_LISTENERS = 4;
+    static final int DISABLE_LISTENERS = 5;
+
     private final JavaPlugin plugin;
     private final PluginManager pluginManager;
 
     private final Map<UUID, SmartInventory> inventories;
     private final Map<UUID, InventoryContents> contents;
+    private final Map<SmartInventory, Set<Player>> viewers;
+    private final NavigationHistory history;
 
     private final List<InventoryOpener> defaultOpeners;
     private final List<InventoryOpener> openers;
+    private final Map<InventoryType, InventoryOpener> openersByType;
+    private int openersVersion;
+
+    private final Map<Class<? extends Event>, Integer> listenerTypes;
+    private int customListenerTypes;
+    private final Listener customListener;
+
+    private final List<InventoryContents> pendingFlushes;
+    private final Map<UUID, ClickResync> resyncs;
+    private final List<ClickResync> pendingResyncs;
+
+    // Opens waiting for the open budget of a tick, in FIFO order with at most one open per player
+    private final Map<UUID, QueuedOpen> openQueue;
+    private int maxOpensPerTick;
+    private long maxOpenNanosPerTick;
+    private BukkitTask openTask;
+
+    private final UpdateWheel updateWheel;
+    private final Queue<UpdateWheel.Entry> dueUpdates;
+
+    // Update budget and degradation of cosmetic inventories under load
+    private long maxUpdateNanosPerTick;
+    private double degradationMspt;
+    private int degradationFactor = 1;
+    private boolean updatesDegraded;
+
+    private long budgetExceededTicks;
+    private long deferredUpdates;
+
+    // Scheduled updates, per player, and per inventory for the shared ones
+    private final Map<UUID, UpdateWheel.Entry> updates;
+    private final Map<SmartInventory, UpdateWheel.Entry> sharedUpdates;
+    private BukkitTask updateTask;
 
     public InventoryManager(JavaPlugin plugin) {
         this.plugin = plugin;
@@ -49,6 +104,8 @@ public class InventoryManager {
 
         this.inventories = new HashMap<>();
         this.contents = new HashMap<>();
+        this.viewers = new HashMap<>();
+        this.history = new NavigationHistory();
 
         this.defaultOpeners = Arrays.asList(
                 new ChestInventoryOpener(),
@@ -56,41 +113,296 @@ public class InventoryManager {
         );
 
         this.openers = new ArrayList<>();
+        this.openersByType = new EnumMap<>(InventoryType.class);
+        buildOpenerTable();
+
+        this.listenerTypes = new HashMap<>();
+        this.listenerTypes.put(InventoryClickEvent.class, CLICK_LISTENERS);
+        this.listenerTypes.put(InventoryDragEvent.class, DRAG_LISTENERS);
+        this.listenerTypes.put(InventoryOpenEvent.class, OPEN_LISTENERS);
+        this.listenerTypes.put(InventoryCloseEvent.class, CLOSE_LISTENERS);
+        this.listenerTypes.put(PlayerQuitEvent.class, QUIT_LISTENERS);
+        this.listenerTypes.put(PluginDisableEvent.class, DISABLE_LISTENERS);
+        this.customListenerTypes = this.listenerTypes.size();
+        this.customListener = new Listener() {};
+
+        this.pendingFlushes = new ArrayList<>();
+        this.resyncs = new HashMap<>();
+        this.pendingResyncs = new ArrayList<>();
+
+        this.openQueue = new LinkedHashMap<>();
+
+        this.updateWheel = new UpdateWheel();
+        this.dueUpdates = new ArrayDeque<>();
+        this.updates = new HashMap<>();
+        this.sharedUpdates = new HashMap<>();
     }
 
     public void init() {
         pluginManager.registerEvents(new InvListener(), plugin);
-
-        new InvTask().runTaskTimer(plugin, 1, 1);
     }
 
-    public Optional<InventoryOpener> findOpener(InventoryType type) {
-        Optional<InventoryOpener> opInv = this.openers.stream()
-                .filter(opener -> opener.supports(type))
-                .findAny();
-
-        if (opInv.isEmpty()) {
-            opInv = this.defaultOpeners.stream()
-                    .filter(opener -> opener.supports(type))
-                    .findAny();
-        }
+    public JavaPlugin getPlugin() { return plugin; }
 
-        return opInv;
+    public Optional<InventoryOpener> findOpener(InventoryType type) {
+        return Optional.ofNullable(this.openersByType.get(type));
     }
 
     public void registerOpeners(InventoryOpener... openers) {
         this.openers.addAll(Arrays.asList(openers));
+
+        buildOpenerTable();
     }
 
-    public List<Player> getOpenedPlayers(SmartInventory inv) {
-        List<Player> list = new ArrayList<>();
+    /**
+     * Returns the current version of the opener table, incremented every time openers are registered
+     * @return the opener table version
+     */
+    int getOpenersVersion() { return openersVersion; }
+
+    private void buildOpenerTable() {
+        this.openersByType.clear();
+
+        for (InventoryType type : InventoryType.values()) {
+            InventoryOpener found = findSupporting(this.openers, type);
+
+            if (found == null)
+                found = findSupporting(this.defaultOpeners, type);
+
+            if (found != null)
+                this.openersByType.put(type, found);
+        }
+
+        this.openersVersion++;
+    }
+
+    private static InventoryOpener findSupporting(List<InventoryOpener> openers, InventoryType type) {
+        for (InventoryOpener opener : openers) {
+            if (opener.supports(type))
+                return opener;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the listener index of an event type, registering a Bukkit listener
+     * for it the first time a custom event type is used.
+     * Custom event types must either be an {@link InventoryEvent} or a {@link PlayerEvent} with a handler list,
+     * listeners of other types are never called, a warning is logged the first time such a type is used.
+     * @return the index, or -1 if the listeners of the type are not supported
+     */
+    int listenerIndex(Class<? extends Event> type) {
+        Integer index = this.listenerTypes.get(type);
+
+        if (index != null)
+            return index;
+
+        if (!InventoryEvent.class.isAssignableFrom(type) && !PlayerEvent.class.isAssignableFrom(type)) {
+            Bukkit.getLogger().warning("Ignoring the SmartInventory listeners of " + type.getName()
+                    + ", only inventory and player events are supported");
+
+            this.listenerTypes.put(type, -1);
+            return -1;
+        }
+
+        int customIndex = this.customListenerTypes;
+
+        try {
+            pluginManager.registerEvent(type, customListener, EventPriority.LOW,
+                    (listener, event) -> callCustomListeners(type, customIndex, event), plugin);
+        } catch (IllegalPluginAccessException e) {
+            // Abstract event types, e.g. InventoryEvent itself, have no handler list
+            Bukkit.getLogger().log(Level.WARNING, "Ignoring the SmartInventory listeners of " + type.getName()
+                    + ", the event cannot be listened to:", e);
+
+            this.listenerTypes.put(type, -1);
+            return -1;
+        }
+
+        this.customListenerTypes++;
+        this.listenerTypes.put(type, customIndex);
+
+        return customIndex;
+    }
+
+    private void callCustomListeners(Class<? extends Event> type, int index, Event event) {
+        // Bukkit also passes subclasses of the registered type to the executor
+        if (event.getClass() != type)
+            return;
+
+        if (event instanceof InventoryEvent inventoryEvent) {
+            if (inventoryEvent.getInventory().getHolder(false) instanceof SmartInventoryHolder holder
+                    && inventoryEvent.getView().getPlayer() instanceof Player viewer
+                    && holder.isViewer(viewer))
+                holder.getSmartInventory().callListeners(index, event);
+
+            return;
+        }
+
+        SmartInventory inv = inventories.get(((PlayerEvent) event).getPlayer().getUniqueId());
+
+        if (inv != null)
+            inv.callListeners(index, event);
+    }
+
+    /**
+     * Sets the budget of the queued opens of a tick, queued opens exceeding it are delayed to the next ticks.
+     * At least one queued open is done every tick.
+     * @param maxOpens the maximum amount of opens per tick, or 0 for no limit
+     * @param maxNanos the maximum time spent opening inventories per tick in nanoseconds, or 0 for no limit
+     */
+    public void setOpenBudget(int maxOpens, long maxNanos) {
+        if (maxOpens < 0 || maxNanos < 0)
+            throw new IllegalArgumentException("The open budget must be positive, found: " + maxOpens + " opens, " + maxNanos + " ns");
+
+        this.maxOpensPerTick = maxOpens;
+        this.maxOpenNanosPerTick = maxNanos;
+    }
+
+    public int getQueuedOpens() { return openQueue.size(); }
+
+    /**
+     * Sets the time budget of the inventory updates of a tick, the updates exceeding it are continued
+     * on the next tick. Updates of {@link SmartInventory.UpdatePriority#CRITICAL} inventories are never delayed.
+     * @param maxNanos the maximum time spent updating inventories per tick in nanoseconds, or 0 for no limit
+     */
+    public void setUpdateBudget(long maxNanos) {
+        if (maxNanos < 0)
+            throw new IllegalArgumentException("The update budget must be positive, found: " + maxNanos + " ns");
+
+        this.maxUpdateNanosPerTick = maxNanos;
+    }
+
+    /**
+     * Makes {@link SmartInventory.UpdatePriority#COSMETIC} inventories update less often while the server is lagging
+     * @param mspt the average tick time in milliseconds above which the updates are degraded, or 0 to never degrade them
+     * @param factor the factor applied to the update frequency of cosmetic inventories while degraded
+     */
+    public void setUpdateDegradation(double mspt, int factor) {
+        if (mspt < 0 || factor < 1)
+            throw new IllegalArgumentException("The degradation must have a positive mspt and a factor of at least 1, found: "
+                    + mspt + " mspt, factor " + factor);
+
+        this.degradationMspt = mspt;
+        this.degradationFactor = factor;
+    }
 
-        this.inventories.forEach((player, playerInv) -> {
-            if (inv.equals(playerInv))
-                list.add(Bukkit.getPlayer(player));
-        });
+    /**
+     * Returns the amount of ticks on which the update budget was exceeded
+     * @return the amount of ticks
+     */
+    public long getBudgetExceededTicks() { return budgetExceededTicks; }
+
+    /**
+     * Returns the amount of updates delayed to a later tick because of the update budget
+     * @return the amount of delayed updates
+     */
+    public long getDeferredUpdates() { return deferredUpdates; }
+
+    /**
+     * Returns if the updates of cosmetic inventories are currently degraded
+     * @return true if degraded, false otherwise
+     */
+    public boolean isUpdatesDegraded() { return updatesDegraded; }
+
+    private int updateDelay(SmartInventory inv) {
+        if (updatesDegraded && inv.getUpdatePriority() == SmartInventory.UpdatePriority.COSMETIC)
+            return inv.getUpdateFrequency() * degradationFactor;
+
+        return inv.getUpdateFrequency();
+    }
+
+    /**
+     * Queues the opening of an inventory, done within the open budget of the next ticks.
+     * A queued open replaces the one already queued for the player, keeping its place in the queue.
+     * Without open budget, the inventory is opened directly.
+     */
+    void queueOpen(SmartInventory inv, Player p, int page) {
+        if (maxOpensPerTick == 0 && maxOpenNanosPerTick == 0 && openQueue.isEmpty()) {
+            inv.open(p, page);
+            return;
+        }
+
+        openQueue.put(p.getUniqueId(), new QueuedOpen(inv, p, page));
 
-        return list;
+        if (openTask == null)
+            openTask = Bukkit.getScheduler().runTaskTimer(plugin, new OpenTask(), 1, 1);
+    }
+
+    /**
+     * Cancels the queued open of a player, superseded by an inventory opened directly
+     */
+    void cancelQueuedOpen(Player p) {
+        if (!openQueue.isEmpty())
+            openQueue.remove(p.getUniqueId());
+    }
+
+    /**
+     * Sets how the inventories left by opening another one are remembered to go back to them
+     * @param maxLevels the maximum amount of inventories remembered per player, or 0 to disable the history
+     * @param maxRetainedSlots the maximum total slot count of the contents retained for all players,
+     *                         going back to an inventory whose contents are not retained initializes it again
+     * @param maxRetainMillis the time after which retained contents are released at the end of the tick,
+     *                        or 0 to keep them until evicted
+     * @see #back(Player)
+     */
+    public void setHistoryPolicy(int maxLevels, int maxRetainedSlots, long maxRetainMillis) {
+        if (maxLevels < 0 || maxRetainedSlots < 0 || maxRetainMillis < 0)
+            throw new IllegalArgumentException("The history policy must be positive, found: " + maxLevels + " levels, "
+                    + maxRetainedSlots + " slots, " + maxRetainMillis + " ms");
+
+        this.history.setPolicy(maxLevels, maxRetainedSlots, maxRetainMillis);
+    }
+
+    /**
+     * Opens the last inventory the player left by opening another one, displaying its retained contents
+     * if available, otherwise initializing it again on the page it was left on.
+     * Without history, the parent of the current inventory is opened.
+     * @param p the player
+     * @return true if an inventory has been opened, false otherwise
+     */
+    public boolean back(Player p) {
+        NavigationHistory.Entry entry = this.history.pop(p);
+
+        if (entry == null) {
+            Optional<SmartInventory> parent = getInventory(p).flatMap(SmartInventory::getParent);
+            parent.ifPresent(inv -> inv.open(p, 0, false));
+
+            return parent.isPresent();
+        }
+
+        if (entry.getContents() != null)
+            entry.getInventory().reopen(p, entry.getContents());
+        else
+            entry.getInventory().open(p, entry.getPage(), false);
+
+        return true;
+    }
+
+    public int getHistorySize(Player p) { return this.history.size(p); }
+
+    /**
+     * Returns the total slot count of the contents currently retained by the history
+     * @return the slot count
+     */
+    public int getRetainedSlots() { return this.history.getRetainedSlots(); }
+
+    public void clearHistory(Player p) {
+        this.history.clear(p);
+    }
+
+    /**
+     * Remembers the inventory a player is leaving by opening another one, with its current contents
+     */
+    void pushHistory(Player p, SmartInventory inv) {
+        this.history.push(p, inv, this.contents.get(p.getUniqueId()));
+    }
+
+    public List<Player> getOpenedPlayers(SmartInventory inv) {
+        Set<Player> players = this.viewers.get(inv);
+
+        return players != null ? new ArrayList<>(players) : new ArrayList<>();
     }
 
     public Optional<SmartInventory> getInventory(Player p) {
@@ -98,10 +410,35 @@ public class InventoryManager {
     }
 
     protected void setInventory(Player p, SmartInventory inv) {
+        SmartInventory previous = this.inventories.remove(p.getUniqueId());
+
+        if (previous != null) {
+            UpdateWheel.Entry update = this.updates.remove(p.getUniqueId());
+
+            if (update != null)
+                this.updateWheel.cancel(update);
+
+            removeViewer(previous, p);
+        }
+
+        if (inv != null)
+            addViewer(inv, p);
+
+        InventoryContents invContents = this.contents.get(p.getUniqueId());
+
+        if (invContents instanceof InventoryContents.Impl impl) {
+            if (previous != null)
+                impl.removeViewer(p);
+            if (inv != null)
+                impl.addViewer(p);
+        }
+
         if (inv == null)
-            this.inventories.remove(p.getUniqueId());
-        else
-            this.inventories.put(p.getUniqueId(), inv);
+            return;
+
+        this.inventories.put(p.getUniqueId(), inv);
+
+        scheduleUpdates(p, inv, invContents);
     }
 
     public Optional<InventoryContents> getContents(Player p) {
@@ -109,10 +446,84 @@ public class InventoryManager {
     }
 
     protected void setContents(Player p, InventoryContents contents) {
-        if (contents == null)
-            this.contents.remove(p.getUniqueId());
-        else
-            this.contents.put(p.getUniqueId(), contents);
+        InventoryContents previous = contents == null
+                ? this.contents.remove(p.getUniqueId())
+                : this.contents.put(p.getUniqueId(), contents);
+
+        if (previous instanceof InventoryContents.Impl impl && previous != contents) {
+            impl.removeViewer(p);
+
+            // Shared contents are disposed by their inventory once their last viewer left,
+            // retained contents by the history once evicted
+            if (!impl.isShared() && !impl.isRetained())
+                impl.dispose();
+        }
+    }
+
+    private void addViewer(SmartInventory inv, Player p) {
+        Set<Player> players = this.viewers.computeIfAbsent(inv, key -> new HashSet<>());
+
+        if (!players.add(p) || players.size() > 1 || !inv.isShared())
+            return;
+
+        // Shared inventories are updated once for all of their viewers
+        InventoryContents invContents = this.contents.get(p.getUniqueId());
+
+        if (invContents != null && inv.getUpdateFrequency() != SmartInventory.NO_UPDATE) {
+            this.sharedUpdates.put(inv, this.updateWheel.schedule(null, inv, invContents, updateDelay(inv)));
+            startUpdateTask();
+        }
+    }
+
+    private void removeViewer(SmartInventory inv, Player p) {
+        Set<Player> players = this.viewers.get(inv);
+
+        if (players == null || !players.remove(p) || !players.isEmpty())
+            return;
+
+        this.viewers.remove(inv);
+
+        if (inv.isShared()) {
+            UpdateWheel.Entry update = this.sharedUpdates.remove(inv);
+
+            if (update != null)
+                this.updateWheel.cancel(update);
+
+            inv.releaseShared();
+        }
+    }
+
+    private void scheduleUpdates(Player p, SmartInventory inv, InventoryContents invContents) {
+        // Shared inventories are updated once for all of their viewers
+        if (inv.isShared() || invContents == null || inv.getUpdateFrequency() == SmartInventory.NO_UPDATE)
+            return;
+
+        this.updates.put(p.getUniqueId(), this.updateWheel.schedule(p, inv, invContents, updateDelay(inv)));
+        startUpdateTask();
+    }
+
+    private void startUpdateTask() {
+        if (this.updateTask == null)
+            this.updateTask = Bukkit.getScheduler().runTaskTimer(plugin, new InvTask(), 1, 1);
+    }
+
+    /**
+     * Runs a task on the main thread, directly if already on it, the task is dropped once the plugin is disabled
+     * @param task the task to run
+     */
+    public void runSync(Runnable task) {
+        if (Bukkit.isPrimaryThread())
+            task.run();
+        else if (plugin.isEnabled())
+            Bukkit.getScheduler().runTask(plugin, task);
+    }
+
+    /**
+     * Schedules the changed slots of contents to be written to their opened inventory at the end of the tick
+     * @param contents the contents with changed slots
+     */
+    public void scheduleFlush(InventoryContents contents) {
+        this.pendingFlushes.add(contents);
     }
 
     public void handleInventoryOpenError(SmartInventory inventory, Player player, Exception exception) {
@@ -127,15 +538,20 @@ public class InventoryManager {
         Bukkit.getLogger().log(Level.SEVERE, "Error while updating SmartInventory:", exception);
     }
 
-    @SuppressWarnings("unchecked")
     class InvListener implements Listener {
 
         @EventHandler(priority = EventPriority.LOW)
         public void onInventoryClick(InventoryClickEvent e) {
+            if (!(e.getInventory().getHolder(false) instanceof SmartInventoryHolder holder))
+                return;
+
             Player p = (Player) e.getWhoClicked();
 
-            if (!inventories.containsKey(p.getUniqueId()))
+            // Still displayed after another inventory has been opened, its items must not be taken
+            if (!holder.isViewer(p)) {
+                e.setCancelled(true);
                 return;
+            }
 
             // Restrict putting items from the bottom inventory into the top inventory
             Inventory clickedInventory = e.getClickedInventory();
@@ -154,35 +570,43 @@ public class InventoryManager {
             if (clickedInventory == p.getOpenInventory().getTopInventory()) {
                 e.setCancelled(true);
 
-                int row = e.getSlot() / 9;
-                int column = e.getSlot() % 9;
+                SmartInventory inv = holder.getSmartInventory();
+                int index = inv.getLayout().toIndex(e.getSlot());
 
-                if (row < 0 || column < 0)
+                if (index == -1)
                     return;
 
-                SmartInventory inv = inventories.get(p.getUniqueId());
+                inv.callListeners(CLICK_LISTENERS, e);
 
-                if (row >= inv.getRows() || column >= inv.getColumns())
-                    return;
+                ClickableItem item = holder.getContents().getOrNull(index);
 
-                inv.getListeners().stream()
-                        .filter(listener -> listener.getType() == InventoryClickEvent.class)
-                        .forEach(listener -> ((InventoryListener<InventoryClickEvent>) listener).accept(e));
+                if (item != null)
+                    item.run(e);
 
-                contents.get(p.getUniqueId()).get(row, column).ifPresent(item -> item.run(e));
+                ClickResync resync = resyncs.computeIfAbsent(p.getUniqueId(), uuid -> new ClickResync(p));
 
-                p.updateInventory();
+                // Clients predict the items taken from a result slot, e.g. shift-clicking crafts several times
+                boolean fullResync = inv.isFullClickResync()
+                        || inv.getLayout().getSlotType(e.getSlot()) == InventoryType.SlotType.RESULT;
+
+                if (resync.record(e, fullResync))
+                    pendingResyncs.add(resync);
             }
         }
 
         @EventHandler(priority = EventPriority.LOW)
         public void onInventoryDrag(InventoryDragEvent e) {
+            if (!(e.getInventory().getHolder(false) instanceof SmartInventoryHolder holder))
+                return;
+
             Player p = (Player) e.getWhoClicked();
 
-            if (!inventories.containsKey(p.getUniqueId()))
+            if (!holder.isViewer(p)) {
+                e.setCancelled(true);
                 return;
+            }
 
-            SmartInventory inv = inventories.get(p.getUniqueId());
+            SmartInventory inv = holder.getSmartInventory();
 
             for (int slot : e.getRawSlots()) {
                 if (slot >= p.getOpenInventory().getTopInventory().getSize())
@@ -192,43 +616,49 @@ public class InventoryManager {
                 break;
             }
 
-            inv.getListeners().stream()
-                    .filter(listener -> listener.getType() == InventoryDragEvent.class)
-                    .forEach(listener -> ((InventoryListener<InventoryDragEvent>) listener).accept(e));
+            inv.callListeners(DRAG_LISTENERS, e);
         }
 
         @EventHandler(priority = EventPriority.LOW)
         public void onInventoryOpen(InventoryOpenEvent e) {
-            Player p = (Player) e.getPlayer();
-
-            if (!inventories.containsKey(p.getUniqueId()))
+            // Called while the opener opens the inventory, before the player is registered as its viewer
+            if (!(e.getInventory().getHolder(false) instanceof SmartInventoryHolder holder))
                 return;
 
-            SmartInventory inv = inventories.get(p.getUniqueId());
-
-            inv.getListeners().stream()
-                    .filter(listener -> listener.getType() == InventoryOpenEvent.class)
-                    .forEach(listener -> ((InventoryListener<InventoryOpenEvent>) listener).accept(e));
+            holder.getSmartInventory().callListeners(OPEN_LISTENERS, e);
         }
 
         @EventHandler(priority = EventPriority.LOW)
         public void onInventoryClose(InventoryCloseEvent e) {
+            if (!(e.getInventory().getHolder(false) instanceof SmartInventoryHolder holder))
+                return;
+
             Player p = (Player) e.getPlayer();
 
-            if (!inventories.containsKey(p.getUniqueId()))
+            // Closed by opening another inventory, the session has already been ended
+            if (!holder.isViewer(p)) {
+                // Closed while the provider of the next inventory is still initializing, which must not be opened anymore
+                if (e.getReason() != InventoryCloseEvent.Reason.OPEN_NEW
+                        && !inventories.containsKey(p.getUniqueId()) && contents.containsKey(p.getUniqueId())) {
+                    setContents(p, null);
+                    clearHistory(p);
+                }
+
                 return;
+            }
 
-            SmartInventory inv = inventories.get(p.getUniqueId());
+            SmartInventory inv = holder.getSmartInventory();
 
-            inv.getListeners().stream()
-                    .filter(listener -> listener.getType() == InventoryCloseEvent.class)
-                    .forEach(listener -> ((InventoryListener<InventoryCloseEvent>) listener).accept(e));
+            inv.callListeners(CLOSE_LISTENERS, e);
 
             if (inv.isCloseable()) {
-                e.getInventory().clear();
+                // The inventory of a shared inventory is still displayed to its other viewers
+                if (!inv.isShared())
+                    e.getInventory().clear();
 
-                inventories.remove(p.getUniqueId());
-                contents.remove(p.getUniqueId());
+                setInventory(p, null);
+                setContents(p, null);
+                clearHistory(p);
             } else
                 Bukkit.getScheduler().runTask(plugin, () -> p.openInventory(e.getInventory()));
         }
@@ -237,50 +667,194 @@ public class InventoryManager {
         public void onPlayerQuit(PlayerQuitEvent e) {
             Player p = e.getPlayer();
 
-            if (!inventories.containsKey(p.getUniqueId()))
-                return;
+            ClickResync resync = resyncs.remove(p.getUniqueId());
+
+            if (resync != null)
+                pendingResyncs.remove(resync);
 
             SmartInventory inv = inventories.get(p.getUniqueId());
 
-            inv.getListeners().stream()
-                    .filter(listener -> listener.getType() == PlayerQuitEvent.class)
-                    .forEach(listener -> ((InventoryListener<PlayerQuitEvent>) listener).accept(e));
+            if (inv != null) {
+                inv.callListeners(QUIT_LISTENERS, e);
+                setInventory(p, null);
+            }
+
+            // Also drops the contents of an inventory still being initialized
+            setContents(p, null);
+            cancelQueuedOpen(p);
+            clearHistory(p);
+        }
+
+        @EventHandler(priority = EventPriority.LOW)
+        public void onServerTickEnd(ServerTickEndEvent e) {
+            // Every pending entry is handled even if another one fails, it would not be scheduled again otherwise
+            for (int i = 0; i < pendingFlushes.size(); i++) {
+                try {
+                    pendingFlushes.get(i).flush();
+                } catch (Exception ex) {
+                    Bukkit.getLogger().log(Level.SEVERE, "Error while flushing SmartInventory contents:", ex);
+                }
+            }
+
+            pendingFlushes.clear();
+
+            // Resync clicked slots after the flushes, so the resent slots hold the flushed items
+            for (int i = 0; i < pendingResyncs.size(); i++) {
+                try {
+                    pendingResyncs.get(i).apply();
+                } catch (Exception ex) {
+                    Bukkit.getLogger().log(Level.SEVERE, "Error while resyncing a SmartInventory click:", ex);
+                }
+            }
+
+            pendingResyncs.clear();
 
-            inventories.remove(p.getUniqueId());
-            contents.remove(p.getUniqueId());
+            // Released even if no player navigates anymore, the contents keep their observable bindings otherwise
+            history.expire();
         }
 
         @EventHandler(priority = EventPriority.LOW)
         public void onPluginDisable(PluginDisableEvent e) {
+            // Closing removes the inventories, so a copy is iterated
             new HashMap<>(inventories).forEach((player, inv) -> {
-                inv.getListeners().stream()
-                        .filter(listener -> listener.getType() == PluginDisableEvent.class)
-                        .forEach(listener -> ((InventoryListener<PluginDisableEvent>) listener).accept(e));
+                inv.callListeners(DISABLE_LISTENERS, e);
 
                 inv.close(Bukkit.getPlayer(player));
             });
 
             inventories.clear();
+            updates.clear();
             contents.clear();
+            viewers.clear();
+            history.clear();
+            pendingFlushes.clear();
+            resyncs.clear();
+            pendingResyncs.clear();
+
+            sharedUpdates.clear();
+            updateWheel.clear();
+            dueUpdates.clear();
+
+            if (updateTask != null) {
+                updateTask.cancel();
+                updateTask = null;
+            }
+
+            openQueue.clear();
+
+            if (openTask != null) {
+                openTask.cancel();
+                openTask = null;
+            }
         }
 
     }
 
-    class InvTask extends BukkitRunnable {
+    class InvTask implements Runnable {
 
         @Override
         public void run() {
-            new HashMap<>(inventories).forEach((uuid, inv) -> {
-                Player player = Bukkit.getPlayer(uuid);
+            updatesDegraded = degradationMspt > 0 && Bukkit.getAverageTickTime() > degradationMspt;
 
-                try {
-                    inv.getProvider().update(player, contents.get(uuid));
-                } catch (Exception e) {
-                    handleInventoryUpdateError(inv, player, e);
+            // Updates delayed by the budget of the previous tick are still at the head of the queue
+            updateWheel.advance(dueUpdates);
+
+            long start = System.nanoTime();
+            boolean exceeded = false;
+
+            for (int remaining = dueUpdates.size(); remaining > 0; remaining--) {
+                UpdateWheel.Entry entry = dueUpdates.poll();
+
+                if (entry.isCancelled())
+                    continue;
+
+                SmartInventory inv = entry.getInventory();
+
+                if (!exceeded && maxUpdateNanosPerTick > 0 && System.nanoTime() - start >= maxUpdateNanosPerTick)
+                    exceeded = true;
+
+                if (exceeded && inv.getUpdatePriority() != SmartInventory.UpdatePriority.CRITICAL) {
+                    dueUpdates.add(entry);
+                    deferredUpdates++;
+                    continue;
                 }
-            });
+
+                update(entry);
+                updateWheel.reschedule(entry, updateDelay(inv));
+            }
+
+            if (exceeded)
+                budgetExceededTicks++;
+
+            // Nothing left to update, the task gets started again by the next scheduled inventory
+            if (updateWheel.isEmpty() && updateTask != null) {
+                updateWheel.clear();
+                dueUpdates.clear();
+
+                updateTask.cancel();
+                updateTask = null;
+            }
+        }
+
+        private void update(UpdateWheel.Entry entry) {
+            SmartInventory inv = entry.getInventory();
+
+            // Shared inventories are updated with any of their viewers
+            Player player = entry.getPlayer() != null
+                    ? entry.getPlayer()
+                    : ((InventoryContents.Impl) entry.getContents()).getViewer();
+
+            if (player == null)
+                return;
+
+            try {
+                inv.getProvider().update(player, entry.getContents());
+            } catch (Exception e) {
+                if (inv.isShared())
+                    getOpenedPlayers(inv).forEach(viewer -> handleInventoryUpdateError(inv, viewer, e));
+                else
+                    handleInventoryUpdateError(inv, player, e);
+            }
+        }
+
+    }
+
+    class OpenTask implements Runnable {
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            int opens = 0;
+
+            Iterator<QueuedOpen> iterator = openQueue.values().iterator();
+
+            while (iterator.hasNext()) {
+                if (opens > 0 && maxOpensPerTick > 0 && opens >= maxOpensPerTick)
+                    break;
+                if (opens > 0 && maxOpenNanosPerTick > 0 && System.nanoTime() - start >= maxOpenNanosPerTick)
+                    break;
+
+                QueuedOpen queued = iterator.next();
+                iterator.remove();
+
+                if (!queued.player().isOnline())
+                    continue;
+
+                queued.inv().open(queued.player(), queued.page());
+                opens++;
+
+                // Opening may have queued or cancelled other opens
+                iterator = openQueue.values().iterator();
+            }
+
+            if (openQueue.isEmpty() && openTask != null) {
+                openTask.cancel();
+                openTask = null;
+            }
         }
 
     }
 
+    private record QueuedOpen(SmartInventory inv, Player player, int page) {}
+
 }
@@ -0,0 +1,186 @@
+package at.noahb.smartinvs;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Cache of rendered items, so providers don't build the same items (meta, lore, skull textures, ...) on every init or update.
+ * Items are cached by a key and rendered again when the version given with the key changes, e.g. a tuple of the values
+ * of the placeholders of the lore. The least recently used items are evicted once the cache is full,
+ * and items are rendered again once they expire.
+ * Item stacks and clickable items are cached under separate keys, a key may be used for both.
+ * The returned items are shared by every caller and must not be modified.
+ */
+public class ItemCache {
+
+    private final long expireNanos;
+
+    private final Map<Object, Entry> entries;
+
+    private long hits, misses, evictions;
+
+    /**
+     * Creates an item cache
+     * @param maxSize the maximum amount of cached items, the least recently used ones are evicted first
+     * @param expireMillis the time after which a cached item is rendered again, or 0 to never expire them
+     */
+    public ItemCache(int maxSize, long expireMillis) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("The item cache must hold at least one item, found: " + maxSize);
+        if (expireMillis < 0)
+            throw new IllegalArgumentException("The expiration time must be positive, found: " + expireMillis);
+
+        this.expireNanos = TimeUnit.MILLISECONDS.toNanos(expireMillis);
+
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+                if (size() <= maxSize)
+                    return false;
+
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Gets a cached item stack, rendering it if it is not cached yet, its version changed or it expired
+     * @param key the key of the item
+     * @param version the version of the item, e.g. the values of its placeholders, or null
+     * @param renderer renders the item
+     * @return the shared item stack
+     */
+    public ItemStack getItem(Object key, Object version, Supplier<ItemStack> renderer) {
+        long now = System.nanoTime();
+        ItemKey itemKey = new ItemKey(key);
+        Object cached = lookup(itemKey, version, now);
+
+        if (cached != null)
+            return (ItemStack) cached;
+
+        ItemStack item = renderer.get();
+        store(itemKey, version, item, now);
+
+        return item;
+    }
+
+    /**
+     * Gets a cached clickable item, rendering it if it is not cached yet, its version changed or it expired.
+     * The click action of the item is shared as well, so it must not depend on the caller.
+     * @param key the key of the item
+     * @param version the version of the item, e.g. the values of its placeholders, or null
+     * @param renderer renders the item
+     * @return the shared clickable item
+     */
+    public ClickableItem get(Object key, Object version, Supplier<ClickableItem> renderer) {
+        long now = System.nanoTime();
+        Object cached = lookup(key, version, now);
+
+        if (cached != null)
+            return (ClickableItem) cached;
+
+        ClickableItem item = renderer.get();
+        store(key, version, item, now);
+
+        return item;
+    }
+
+    /**
+     * Removes the cached item stack and clickable item of a key
+     * @param key the key of the item
+     */
+    public void invalidate(Object key) {
+        synchronized (entries) {
+            entries.remove(key);
+            entries.remove(new ItemKey(key));
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Removes the expired items, which are otherwise only rendered again once requested
+     */
+    public void cleanUp() {
+        if (expireNanos == 0)
+            return;
+
+        long now = System.nanoTime();
+
+        synchronized (entries) {
+            Iterator<Entry> iterator = entries.values().iterator();
+
+            while (iterator.hasNext()) {
+                if (isExpired(iterator.next(), now)) {
+                    iterator.remove();
+                    evictions++;
+                }
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    public long getEvictions() {
+        synchronized (entries) {
+            return evictions;
+        }
+    }
+
+    private Object lookup(Object key, Object version, long now) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+
+            if (entry != null && Objects.equals(entry.version, version) && !isExpired(entry, now)) {
+                hits++;
+                return entry.value;
+            }
+
+            misses++;
+            return null;
+        }
+    }
+
+    private void store(Object key, Object version, Object value, long renderedAt) {
+        synchronized (entries) {
+            entries.put(key, new Entry(version, value, renderedAt));
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return expireNanos > 0 && now - entry.renderedAt >= expireNanos;
+    }
+
+    // Key of the item stacks, separating them from the clickable items cached under the same key
+    private record ItemKey(Object key) {}
+
+    private record Entry(Object version, Object value, long renderedAt) {}
+
+}
@@ -0,0 +1,191 @@
+package at.noahb.smartinvs;
+
+import at.noahb.smartinvs.content.InventoryContents;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Per-player stack of the inventories left by opening another one, used by the {@link InventoryManager} to go back.
+ * The contents of the left inventories can be retained, so going back displays them again without initializing
+ * the inventory. Retained contents are bounded by a total slot count and a retention time, the oldest ones
+ * being evicted first, and are released when the player closes the inventory or leaves.
+ */
+class NavigationHistory {
+
+    private final Map<UUID, Deque<Entry>> stacks = new HashMap<>();
+
+    // Entries with retained contents, from the oldest to the most recently retained
+    private final Set<Entry> retained = new LinkedHashSet<>();
+    private int retainedSlots;
+
+    private int maxLevels = 8;
+    private int maxRetainedSlots;
+    private long maxRetainMillis;
+
+    void setPolicy(int maxLevels, int maxRetainedSlots, long maxRetainMillis) {
+        this.maxLevels = maxLevels;
+        this.maxRetainedSlots = maxRetainedSlots;
+        this.maxRetainMillis = maxRetainMillis;
+
+        this.stacks.values().forEach(stack -> {
+            while (stack.size() > maxLevels)
+                release(stack.removeFirst());
+        });
+        this.stacks.values().removeIf(Deque::isEmpty);
+
+        evict(System.currentTimeMillis());
+    }
+
+    /**
+     * Pushes the inventory a player is leaving, retaining its contents if the policy allows it
+     */
+    void push(Player player, SmartInventory inv, InventoryContents contents) {
+        if (maxLevels == 0)
+            return;
+
+        Entry entry = new Entry(inv, contents != null ? contents.pagination().getPage() : 0);
+        int slots = inv.getRows() * inv.getColumns();
+
+        if (contents instanceof InventoryContents.Impl impl && !impl.isShared() && slots <= maxRetainedSlots) {
+            impl.setRetained(true);
+
+            entry.contents = impl;
+            entry.slots = slots;
+            entry.retainedAt = System.currentTimeMillis();
+
+            this.retained.add(entry);
+            this.retainedSlots += slots;
+        }
+
+        Deque<Entry> stack = this.stacks.computeIfAbsent(player.getUniqueId(), uuid -> new ArrayDeque<>());
+        stack.addLast(entry);
+
+        if (stack.size() > maxLevels)
+            release(stack.removeFirst());
+
+        evict(System.currentTimeMillis());
+    }
+
+    /**
+     * Pops the last inventory left by a player, the retained contents of the entry are handed over to the caller
+     * @return the entry, or null if the history of the player is empty
+     */
+    Entry pop(Player player) {
+        Deque<Entry> stack = this.stacks.get(player.getUniqueId());
+
+        if (stack == null)
+            return null;
+
+        evict(System.currentTimeMillis());
+
+        Entry entry = stack.pollLast();
+
+        if (stack.isEmpty())
+            this.stacks.remove(player.getUniqueId());
+
+        if (entry != null && entry.contents != null) {
+            this.retained.remove(entry);
+            this.retainedSlots -= entry.slots;
+
+            entry.contents.setRetained(false);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Releases the retained contents which expired, called at the end of every tick
+     */
+    void expire() {
+        if (maxRetainMillis == 0 || retained.isEmpty())
+            return;
+
+        evict(System.currentTimeMillis());
+    }
+
+    int size(Player player) {
+        Deque<Entry> stack = this.stacks.get(player.getUniqueId());
+        return stack != null ? stack.size() : 0;
+    }
+
+    int getRetainedSlots() { return retainedSlots; }
+
+    void clear(Player player) {
+        Deque<Entry> stack = this.stacks.remove(player.getUniqueId());
+
+        if (stack != null)
+            stack.forEach(this::release);
+    }
+
+    void clear() {
+        this.stacks.values().forEach(stack -> stack.forEach(this::release));
+        this.stacks.clear();
+    }
+
+    private void evict(long now) {
+        Iterator<Entry> iterator = this.retained.iterator();
+
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+
+            boolean expired = maxRetainMillis > 0 && now - entry.retainedAt >= maxRetainMillis;
+
+            if (!expired && retainedSlots <= maxRetainedSlots)
+                break;
+
+            iterator.remove();
+            drop(entry);
+        }
+    }
+
+    private void release(Entry entry) {
+        if (entry.contents == null)
+            return;
+
+        this.retained.remove(entry);
+        drop(entry);
+    }
+
+    private void drop(Entry entry) {
+        this.retainedSlots -= entry.slots;
+
+        // The entry is kept, going back to it initializes the inventory again
+        entry.contents.setRetained(false);
+        entry.contents.dispose();
+        entry.contents = null;
+    }
+
+    static final class Entry {
+
+        private final SmartInventory inv;
+        private final int page;
+
+        private InventoryContents.Impl contents;
+        private int slots;
+        private long retainedAt;
+
+        private Entry(SmartInventory inv, int page) {
+            this.inv = inv;
+            this.page = page;
+        }
+
+        SmartInventory getInventory() { return inv; }
+        int getPage() { return page; }
+
+        /**
+         * Returns the retained contents of the entry
+         * @return the contents, or null if they have not been retained or have been evicted
+         */
+        InventoryContents getContents() { return contents; }
+
+    }
+
+}
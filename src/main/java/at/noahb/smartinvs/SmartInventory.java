@@ -2,65 +2,251 @@ package at.noahb.smartinvs;
 
 import at.noahb.smartinvs.content.InventoryContents;
 import at.noahb.smartinvs.content.InventoryProvider;
+import at.noahb.smartinvs.content.InventoryTemplate;
+import at.noahb.smartinvs.content.SlotLayout;
 import at.noahb.smartinvs.opener.InventoryOpener;
 import org.bukkit.entity.Player;
 import org.bukkit.event.Event;
 import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.inventory.InventoryOpenEvent;
 import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.inventory.Inventory;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 
-@SuppressWarnings("unchecked")
 public class SmartInventory {
 
+    /**
+     * Update frequency of inventories whose provider should never be updated
+     */
+    public static final int NO_UPDATE = 0;
+
+    /**
+     * Priority of the updates of an inventory when the update budget of the manager is exceeded
+     * or the server is lagging
+     */
+    public enum UpdatePriority {
+        /** Always updated, even when the update budget of the tick is exceeded */
+        CRITICAL,
+        /** Delayed to the next tick when the update budget of the tick is exceeded */
+        NORMAL,
+        /** Delayed when the update budget is exceeded, and updated less often while the server is lagging */
+        COSMETIC
+    }
+
     private String id;
     private String title;
     private InventoryType type;
     private int rows, columns;
+    private SlotLayout layout;
     private boolean closeable;
+    private int updateFrequency;
+    private UpdatePriority updatePriority;
+    private boolean fullClickResync;
+    private boolean shared;
+    private boolean openInPlace;
 
     private InventoryProvider provider;
     private SmartInventory parent;
+    private InventoryTemplate template;
 
-    private List<InventoryListener<? extends Event>> listeners;
+    private InventoryListener<?>[][] listenersByType;
     private final InventoryManager manager;
 
+    private InventoryOpener opener;
+    private int openerVersion = -1;
+
+    // Contents and inventory displayed to every viewer of a shared inventory
+    private InventoryContents sharedContents;
+    private Inventory sharedHandle;
+
+    // Contents of a shared inventory still initialized by the provider, and the players waiting for them
+    private InventoryContents sharedPending;
+    private List<Player> sharedWaiters;
+
     private SmartInventory(InventoryManager manager) {
         this.manager = manager;
     }
 
     public Inventory open(Player player) { return open(player, 0); }
+
+    /**
+     * Opens the inventory for a player, once the provider finished its initialization
+     * @param player the player the inventory should be opened
+     * @param page the page the inventory should be opened on
+     * @return the opened inventory, or null if the initialization of the provider is still running
+     * or the inventory could not be opened
+     */
     public Inventory open(Player player, int page) {
-        Optional<SmartInventory> oldInv = this.manager.getInventory(player);
+        return open(player, page, true);
+    }
 
-        oldInv.ifPresent(inv -> {
-            inv.getListeners().stream()
-                    .filter(listener -> listener.getType() == InventoryCloseEvent.class)
-                    .forEach(listener -> ((InventoryListener<InventoryCloseEvent>) listener)
-                            .accept(new InventoryCloseEvent(player.getOpenInventory())));
+    /**
+     * Opens the inventory for a player
+     * @param remember true to push the inventory the player is leaving to the navigation history, false otherwise
+     */
+    Inventory open(Player player, int page, boolean remember) {
+        this.manager.cancelQueuedOpen(player);
+        leave(player, remember);
 
-            this.manager.setInventory(player, null);
-        });
+        if (this.shared && this.sharedContents != null)
+            return openShared(player);
+
+        // The shared contents are only initialized once, later viewers wait for the running initialization
+        if (this.shared && this.sharedPending != null) {
+            this.manager.setContents(player, this.sharedPending);
 
-        InventoryContents contents = new InventoryContents.Impl(this, player.getUniqueId());
-        contents.pagination().page(page);
+            if (!this.sharedWaiters.contains(player))
+                this.sharedWaiters.add(player);
+
+            return null;
+        }
+
+        InventoryContents contents = new InventoryContents.Impl(this, this.shared ? null : player.getUniqueId());
+        if (page != 0)
+            contents.pagination().page(page);
 
         this.manager.setContents(player, contents);
 
+        CompletableFuture<Void> init;
+
         try {
-            this.provider.init(player, contents);
+            init = this.provider.initAsync(player, contents);
+        } catch (Exception e) {
+            this.manager.handleInventoryOpenError(this, player, e);
+            return null;
+        }
+
+        if (init.isDone() && !init.isCompletedExceptionally())
+            return openInitialized(player, contents);
+
+        if (!this.shared) {
+            init.whenComplete((ignored, throwable) -> this.manager.runSync(() -> completeInit(player, contents, throwable)));
+            return null;
+        }
+
+        this.sharedPending = contents;
+        this.sharedWaiters = new ArrayList<>();
+        this.sharedWaiters.add(player);
+
+        init.whenComplete((ignored, throwable) -> this.manager.runSync(() -> {
+            List<Player> waiters = this.sharedWaiters;
+
+            this.sharedPending = null;
+            this.sharedWaiters = null;
+
+            for (Player waiter : waiters)
+                completeInit(waiter, contents, throwable);
+
+            // Every waiting player left or the opening failed, nothing else releases the contents
+            if (this.sharedContents != contents && contents instanceof InventoryContents.Impl impl)
+                impl.dispose();
+        }));
+
+        return null;
+    }
 
+    private void completeInit(Player player, InventoryContents contents, Throwable throwable) {
+        // The player left, opened another inventory, or the manager has been cleared meanwhile
+        if (!player.isOnline() || !this.manager.getContents(player).equals(Optional.of(contents)))
+            return;
+
+        if (throwable != null) {
+            Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                    ? throwable.getCause()
+                    : throwable;
+
+            this.manager.handleInventoryOpenError(this, player,
+                    cause instanceof Exception exception ? exception : new CompletionException(cause));
+            return;
+        }
+
+        openInitialized(player, contents);
+    }
+
+    /**
+     * Opens the inventory for a player with contents retained by the navigation history, without initializing it
+     * @param player the player the inventory should be opened
+     * @param contents the retained contents
+     * @return the opened inventory, or null if it could not be opened
+     */
+    Inventory reopen(Player player, InventoryContents contents) {
+        this.manager.cancelQueuedOpen(player);
+        leave(player, false);
+
+        this.manager.setContents(player, contents);
+        return openInitialized(player, contents);
+    }
+
+    private void leave(Player player, boolean remember) {
+        this.manager.getInventory(player).ifPresent(inv -> {
+            inv.callListeners(InventoryManager.CLOSE_LISTENERS, new InventoryCloseEvent(player.getOpenInventory()));
+
+            // Reopening the same inventory, e.g. to flip its page, is not a navigation step
+            if (remember && inv != this)
+                this.manager.pushHistory(player, inv);
+
+            this.manager.setInventory(player, null);
+        });
+    }
+
+    public void openQueued(Player player) { openQueued(player, 0); }
+
+    /**
+     * Opens the inventory for a player within the open budget of the manager,
+     * spreading the opening of many inventories over several ticks
+     * @param player the player the inventory should be opened
+     * @param page the page the inventory should be opened on
+     * @see InventoryManager#setOpenBudget(int, long)
+     */
+    public void openQueued(Player player, int page) {
+        this.manager.queueOpen(this, player, page);
+    }
+
+    private Inventory openInitialized(Player player, InventoryContents contents) {
+        try {
             // If the current inventory has been closed or replaced within the init method, returns
             if (!this.manager.getContents(player).equals(Optional.of(contents))) {
                 return null;
             }
 
-            InventoryOpener opener = this.manager.findOpener(type)
-                    .orElseThrow(() -> new IllegalStateException("No opener found for the inventory type " + type.name()));
-            Inventory handle = opener.open(this, player);
+            // Another viewer finished initializing the shared inventory first, e.g. from within the init method
+            if (this.shared && this.sharedContents != null) {
+                if (contents != this.sharedContents && contents instanceof InventoryContents.Impl impl)
+                    impl.dispose();
+
+                return openShared(player);
+            }
+
+            Inventory handle = findReusableInventory(player);
+
+            if (handle != null) {
+                // Displayed in the inventory of the previous menu, only the differing slots are written
+                ((SmartInventoryHolder) handle.getHolder(false)).rebind(this, contents);
+                ((InventoryContents.Impl) contents).bindInPlace(handle);
+
+                // The client view is not reopened, so Bukkit fires no InventoryOpenEvent for it
+                callListeners(InventoryManager.OPEN_LISTENERS, new InventoryOpenEvent(player.getOpenInventory()));
+            } else {
+                InventoryOpener opener = getOpener();
+                handle = opener.open(this, player);
+
+                if (!(handle.getHolder(false) instanceof SmartInventoryHolder))
+                    throw new IllegalStateException("The opener " + opener.getClass().getName()
+                            + " must create inventories held by a SmartInventoryHolder");
+            }
+
+            if (this.shared) {
+                this.sharedContents = contents;
+                this.sharedHandle = handle;
+
+                ((InventoryContents.Impl) contents).bind(handle);
+            }
 
             this.manager.setInventory(player, this);
 
@@ -71,17 +257,44 @@ public class SmartInventory {
         }
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Returns the inventory of the menu the player is leaving if this inventory can be displayed in it:
+     * both must have the same type and size, and neither can be shared
+     */
+    private Inventory findReusableInventory(Player player) {
+        if (!this.openInPlace || this.shared)
+            return null;
+
+        Inventory top = player.getOpenInventory().getTopInventory();
+
+        if (!(top.getHolder(false) instanceof SmartInventoryHolder holder))
+            return null;
+
+        SmartInventory previous = holder.getSmartInventory();
+
+        // The session of the previous menu has already been ended by the opening
+        if (previous.isShared() || holder.isViewer(player))
+            return null;
+
+        return previous.getType() == this.type && top.getSize() == this.layout.getSize() ? top : null;
+    }
+
+    private Inventory openShared(Player player) {
+        this.manager.setContents(player, this.sharedContents);
+        player.openInventory(this.sharedHandle);
+        this.manager.setInventory(player, this);
+
+        return this.sharedHandle;
+    }
+
     public void close(Player player) {
-        listeners.stream()
-                .filter(listener -> listener.getType() == InventoryCloseEvent.class)
-                .forEach(listener -> ((InventoryListener<InventoryCloseEvent>) listener)
-                        .accept(new InventoryCloseEvent(player.getOpenInventory())));
+        callListeners(InventoryManager.CLOSE_LISTENERS, new InventoryCloseEvent(player.getOpenInventory()));
 
         this.manager.setInventory(player, null);
         player.closeInventory();
 
         this.manager.setContents(player, null);
+        this.manager.clearHistory(player);
     }
 
     public String getId() { return id; }
@@ -89,16 +302,56 @@ public class SmartInventory {
     public InventoryType getType() { return type; }
     public int getRows() { return rows; }
     public int getColumns() { return columns; }
+    public SlotLayout getLayout() { return layout; }
 
     public boolean isCloseable() { return closeable; }
     public void setCloseable(boolean closeable) { this.closeable = closeable; }
 
+    public int getUpdateFrequency() { return updateFrequency; }
+    public UpdatePriority getUpdatePriority() { return updatePriority; }
+    public boolean isFullClickResync() { return fullClickResync; }
+    public boolean isShared() { return shared; }
+    public boolean isOpenInPlace() { return openInPlace; }
+
     public InventoryProvider getProvider() { return provider; }
     public Optional<SmartInventory> getParent() { return Optional.ofNullable(parent); }
+    public Optional<InventoryTemplate> getTemplate() { return Optional.ofNullable(template); }
 
     public InventoryManager getManager() { return manager; }
 
-    List<InventoryListener<? extends Event>> getListeners() { return listeners; }
+    /**
+     * Releases the contents of a shared inventory once its last viewer left,
+     * the next opening initializes them again
+     */
+    void releaseShared() {
+        if (this.sharedContents instanceof InventoryContents.Impl impl) {
+            impl.bind(null);
+            impl.dispose();
+        }
+
+        this.sharedContents = null;
+        this.sharedHandle = null;
+    }
+
+    private InventoryOpener getOpener() {
+        // Only resolve the opener again if new openers have been registered since the last resolution
+        if (this.openerVersion != this.manager.getOpenersVersion()) {
+            this.opener = this.manager.findOpener(type)
+                    .orElseThrow(() -> new IllegalStateException("No opener found for the inventory type " + type.name()));
+            this.openerVersion = this.manager.getOpenersVersion();
+        }
+
+        return this.opener;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T extends Event> void callListeners(int type, T event) {
+        if (type >= listenersByType.length)
+            return;
+
+        for (InventoryListener<?> listener : listenersByType[type])
+            ((InventoryListener<T>) listener).accept(event);
+    }
 
     public static Builder builder() { return new Builder(); }
 
@@ -109,10 +362,16 @@ public class SmartInventory {
         private InventoryType type = InventoryType.CHEST;
         private int rows = 6, columns = 9;
         private boolean closeable = true;
+        private int updateFrequency = 1;
+        private UpdatePriority updatePriority = UpdatePriority.NORMAL;
+        private boolean fullClickResync = false;
+        private boolean shared = false;
+        private boolean openInPlace = false;
 
         private InventoryManager manager;
         private InventoryProvider provider;
         private SmartInventory parent;
+        private Consumer<InventoryContents> template;
 
         private final List<InventoryListener<? extends Event>> listeners = new ArrayList<>();
 
@@ -144,6 +403,59 @@ public class SmartInventory {
             return this;
         }
 
+        /**
+         * Sets every how many ticks the provider gets updated
+         * @param updateFrequency the update period in ticks, or {@link #NO_UPDATE} to never update
+         * @return the builder
+         */
+        public Builder updateFrequency(int updateFrequency) {
+            if (updateFrequency < 0)
+                throw new IllegalArgumentException("The update frequency must be positive or NO_UPDATE, found: " + updateFrequency);
+
+            this.updateFrequency = updateFrequency;
+            return this;
+        }
+
+        public Builder updatePriority(UpdatePriority updatePriority) {
+            this.updatePriority = updatePriority;
+            return this;
+        }
+
+        /**
+         * Sets if the whole inventory of the player should be resent after a click on the inventory,
+         * instead of only the slots the click could have changed on the client
+         * @param fullClickResync true to resend the whole inventory, false otherwise
+         * @return the builder
+         */
+        public Builder fullClickResync(boolean fullClickResync) {
+            this.fullClickResync = fullClickResync;
+            return this;
+        }
+
+        /**
+         * Sets if the inventory is shared: its contents are initialized and updated once,
+         * with one of its viewers, and displayed to every player opening it.
+         * Clicks are still handled with the clicking player.
+         * @param shared true to share the inventory between its viewers, false otherwise
+         * @return the builder
+         */
+        public Builder shared(boolean shared) {
+            this.shared = shared;
+            return this;
+        }
+
+        /**
+         * Sets if the inventory is opened in place of the menu the player is leaving when both have the same type and size:
+         * the displayed inventory is kept and only the slots that differ are written, without closing and opening it.
+         * The title of the kept inventory is not changed.
+         * @param openInPlace true to open the inventory in place, false to always open a new one
+         * @return the builder
+         */
+        public Builder openInPlace(boolean openInPlace) {
+            this.openInPlace = openInPlace;
+            return this;
+        }
+
         public Builder provider(InventoryProvider provider) {
             this.provider = provider;
             return this;
@@ -154,6 +466,23 @@ public class SmartInventory {
             return this;
         }
 
+        /**
+         * Sets the static layout of the inventory (borders, navigation, ...),
+         * rendered once when the inventory is built and copied into the contents before the provider is initialized
+         * @param template the layout setting the static items
+         * @return the builder
+         */
+        public Builder template(Consumer<InventoryContents> template) {
+            this.template = template;
+            return this;
+        }
+
+        /**
+         * Adds a listener of an event related to the inventory, the event type must be an inventory or player event
+         * which can be listened to. Listeners of other types are ignored with a warning once the inventory is built.
+         * @param listener the listener
+         * @return the builder
+         */
         public Builder listener(InventoryListener<? extends Event> listener) {
             this.listeners.add(listener);
             return this;
@@ -180,13 +509,51 @@ public class SmartInventory {
             inv.type = this.type;
             inv.rows = this.rows;
             inv.columns = this.columns;
+            inv.layout = SlotLayout.of(this.type, this.rows, this.columns);
             inv.closeable = this.closeable;
+            inv.updateFrequency = this.updateFrequency;
+            inv.updatePriority = this.updatePriority;
+            inv.fullClickResync = this.fullClickResync;
+            inv.shared = this.shared;
+            inv.openInPlace = this.openInPlace;
             inv.provider = this.provider;
             inv.parent = this.parent;
-            inv.listeners = this.listeners;
+            inv.listenersByType = compileListeners(manager);
+
+            if (this.template != null)
+                inv.template = InventoryTemplate.render(inv, this.template);
+
+            manager.findOpener(this.type).ifPresent(opener -> {
+                inv.opener = opener;
+                inv.openerVersion = manager.getOpenersVersion();
+            });
 
             return inv;
         }
+
+        private InventoryListener<?>[][] compileListeners(InventoryManager manager) {
+            List<List<InventoryListener<?>>> byType = new ArrayList<>();
+
+            for (InventoryListener<? extends Event> listener : this.listeners) {
+                int index = manager.listenerIndex(listener.getType());
+
+                // Unsupported event types are logged by the manager, their listeners were never called
+                if (index == -1)
+                    continue;
+
+                while (byType.size() <= index)
+                    byType.add(new ArrayList<>());
+
+                byType.get(index).add(listener);
+            }
+
+            InventoryListener<?>[][] table = new InventoryListener<?>[byType.size()][];
+
+            for (int i = 0; i < table.length; i++)
+                table[i] = byType.get(i).toArray(new InventoryListener<?>[0]);
+
+            return table;
+        }
     }
 
 }
@@ -0,0 +1,80 @@
+package at.noahb.smartinvs;
+
+import at.noahb.smartinvs.content.InventoryContents;
+import net.kyori.adventure.text.Component;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.inventory.InventoryType;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+
+/**
+ * Holder of the inventories opened by SmartInvs, referencing the inventory and contents they display.
+ * Openers must create their inventories with this holder, the InventoryManager only handles events of inventories held by it.
+ */
+public class SmartInventoryHolder implements InventoryHolder {
+
+    private SmartInventory smartInventory;
+    private InventoryContents contents;
+    private Inventory inventory;
+
+    private SmartInventoryHolder(SmartInventory smartInventory, InventoryContents contents) {
+        this.smartInventory = smartInventory;
+        this.contents = contents;
+    }
+
+    /**
+     * Creates a chest inventory held by a new holder
+     * @param inv the inventory to display
+     * @param contents the contents to display
+     * @param size the size of the inventory
+     * @return the created inventory
+     */
+    public static Inventory createInventory(SmartInventory inv, InventoryContents contents, int size) {
+        SmartInventoryHolder holder = new SmartInventoryHolder(inv, contents);
+        holder.inventory = Bukkit.createInventory(holder, size, Component.text(inv.getTitle()));
+
+        return holder.inventory;
+    }
+
+    /**
+     * Creates an inventory of a type held by a new holder
+     * @param inv the inventory to display
+     * @param contents the contents to display
+     * @param type the type of the inventory
+     * @return the created inventory
+     */
+    public static Inventory createInventory(SmartInventory inv, InventoryContents contents, InventoryType type) {
+        SmartInventoryHolder holder = new SmartInventoryHolder(inv, contents);
+        holder.inventory = Bukkit.createInventory(holder, type, Component.text(inv.getTitle()));
+
+        return holder.inventory;
+    }
+
+    /**
+     * Makes the inventory of this holder display another inventory of the same layout
+     * @param smartInventory the inventory now displayed
+     * @param contents the contents now displayed
+     */
+    void rebind(SmartInventory smartInventory, InventoryContents contents) {
+        this.smartInventory = smartInventory;
+        this.contents = contents;
+    }
+
+    public SmartInventory getSmartInventory() { return smartInventory; }
+    public InventoryContents getContents() { return contents; }
+
+    @Override
+    public Inventory getInventory() { return inventory; }
+
+    /**
+     * Checks if a player is currently viewing the contents of this holder, a player still seeing the inventory
+     * after opening another one, e.g. while the provider of the other one is initializing, is not a viewer anymore
+     * @param player the player
+     * @return true if the player is a viewer, false otherwise
+     */
+    public boolean isViewer(Player player) {
+        return contents instanceof InventoryContents.Impl impl && impl.isViewer(player);
+    }
+
+}
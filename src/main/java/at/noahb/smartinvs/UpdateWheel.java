@@ -0,0 +1,128 @@
+package at.noahb.smartinvs;
+
+import at.noahb.smartinvs.content.InventoryContents;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Hashed timing wheel used by the {@link InventoryManager} to only wake up the
+ * opened inventories whose update is due on the current tick.
+ */
+class UpdateWheel {
+
+    private static final int SIZE = 64;
+    private static final int MASK = SIZE - 1;
+
+    private final List<List<Entry>> buckets;
+    private List<Entry> spare = new ArrayList<>();
+
+    private int tick;
+    private int scheduled;
+
+    UpdateWheel() {
+        this.buckets = new ArrayList<>(SIZE);
+
+        for (int i = 0; i < SIZE; i++)
+            this.buckets.add(new ArrayList<>());
+    }
+
+    /**
+     * Schedules the updates of opened contents, with a null player for the contents of a shared inventory
+     */
+    Entry schedule(Player player, SmartInventory inv, InventoryContents contents, int delay) {
+        Entry entry = new Entry(player, inv, contents);
+
+        insert(entry, delay);
+        this.scheduled++;
+
+        return entry;
+    }
+
+    /**
+     * Schedules the next update of an entry taken from the wheel, unless it has been cancelled meanwhile
+     */
+    void reschedule(Entry entry, int delay) {
+        if (!entry.cancelled)
+            insert(entry, delay);
+    }
+
+    void cancel(Entry entry) {
+        if (entry.cancelled)
+            return;
+
+        entry.cancelled = true;
+        this.scheduled--;
+    }
+
+    boolean isEmpty() { return scheduled == 0; }
+
+    /**
+     * Advances the wheel by one tick and moves every entry due on it to the given queue.
+     * Entries taken from the wheel must be rescheduled once updated.
+     */
+    void advance(Queue<Entry> due) {
+        this.tick++;
+
+        int index = tick & MASK;
+        List<Entry> bucket = buckets.get(index);
+
+        if (bucket.isEmpty())
+            return;
+
+        // Swap the bucket with the spare list, so entries rescheduled to the current bucket are not visited twice
+        buckets.set(index, spare);
+        spare = bucket;
+
+        for (Entry entry : bucket) {
+            if (entry.cancelled)
+                continue;
+
+            if (entry.rounds > 0) {
+                entry.rounds--;
+                buckets.get(index).add(entry);
+                continue;
+            }
+
+            due.add(entry);
+        }
+
+        bucket.clear();
+    }
+
+    void clear() {
+        buckets.forEach(List::clear);
+        this.scheduled = 0;
+    }
+
+    private void insert(Entry entry, int delay) {
+        entry.rounds = (delay - 1) / SIZE;
+        buckets.get((tick + delay) & MASK).add(entry);
+    }
+
+    static final class Entry {
+
+        private final Player player;
+        private final SmartInventory inv;
+        private final InventoryContents contents;
+
+        private int rounds;
+        private boolean cancelled;
+
+        private Entry(Player player, SmartInventory inv, InventoryContents contents) {
+            this.player = player;
+            this.inv = inv;
+            this.contents = contents;
+        }
+
+        boolean isCancelled() { return cancelled; }
+
+        Player getPlayer() { return player; }
+        SmartInventory getInventory() { return inv; }
+        InventoryContents getContents() { return contents; }
+
+    }
+
+}
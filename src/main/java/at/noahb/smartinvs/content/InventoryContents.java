@@ -2,15 +2,20 @@ package at.noahb.smartinvs.content;
 
 import at.noahb.smartinvs.SmartInventory;
 import at.noahb.smartinvs.ClickableItem;
-import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public interface InventoryContents {
 
@@ -68,9 +73,24 @@ public interface InventoryContents {
      */
     SlotIterator newIterator(SlotIterator.Type type, SlotPos startPos);
 
+    /**
+     * Creates a new SlotIterator going through a custom path
+     * @param id id of SlotIterator
+     * @param path the slots the iterator goes through, starting on the first one
+     * @return a new SlotIterator
+     */
+    SlotIterator newIterator(String id, SlotPath path);
 
     /**
-     * returns the content of the inventory
+     * Creates a new slot iterator going through a custom path
+     * @param path the slots the iterator goes through, starting on the first one
+     * @return a new slot iterator
+     */
+    SlotIterator newIterator(SlotPath path);
+
+
+    /**
+     * returns a copy of the content of the inventory
      * @return content of the inventory
      */
     ClickableItem[][] all();
@@ -81,6 +101,12 @@ public interface InventoryContents {
      */
     Optional<SlotPos> firstEmpty();
 
+    /**
+     * Returns the first empty slot index of the inventory
+     * @return the slot index (row * columns + column) of the first empty field, or -1 if there is none
+     */
+    int firstEmptySlot();
+
     /**
      * Gets the item of a specific position
      * @param row row number
@@ -89,6 +115,21 @@ public interface InventoryContents {
      */
     Optional<ClickableItem> get(int row, int column);
 
+    /**
+     * Gets the item of a specific position, without wrapping it in an Optional
+     * @param row row number
+     * @param column column number
+     * @return the clickable item, or null if there is none
+     */
+    ClickableItem getOrNull(int row, int column);
+
+    /**
+     * Gets the item of a slot index, without wrapping it in an Optional
+     * @param slot slot index, row * columns + column
+     * @return the clickable item, or null if there is none
+     */
+    ClickableItem getOrNull(int slot);
+
     /**
      * Gets the item of a specific position
      * @param slotPos slot pos of the item
@@ -113,6 +154,14 @@ public interface InventoryContents {
      */
     InventoryContents set(SlotPos slotPos, ClickableItem item);
 
+    /**
+     * set an item in the inventory
+     * @param slot slot index, row * columns + column
+     * @param item item which should be set at the position
+     * @return the updated inventory
+     */
+    InventoryContents set(int slot, ClickableItem item);
+
     /**
      *
      * @param item item which should be added to the inventory
@@ -171,6 +220,53 @@ public interface InventoryContents {
      */
     InventoryContents fillRect(SlotPos fromPos, SlotPos toPos, ClickableItem item);
 
+    /**
+     * Binds a slot to a property, the slot is rendered with the current value of the property
+     * and rendered again every time the property is set.
+     * The name is assigned a global index like a {@link PropertyKey}, so it should not be built dynamically.
+     * @param row row number
+     * @param column column number
+     * @param name name of the property
+     * @param renderer creates the item of the slot from the value of the property
+     * @param <T> type of the property
+     * @return the updated inventory
+     */
+    <T> InventoryContents bind(int row, int column, String name, Function<T, ClickableItem> renderer);
+
+    /**
+     * Binds a slot to an observable value, the slot is rendered with the current value
+     * and rendered again every time the value changes, until the contents are closed
+     * @param row row number
+     * @param column column number
+     * @param observable the observable value
+     * @param renderer creates the item of the slot from the value
+     * @param <T> type of the value
+     * @return the updated inventory
+     */
+    <T> InventoryContents bind(int row, int column, Observable<T> observable, Function<T, ClickableItem> renderer);
+
+    /**
+     * Removes the binding of a slot, keeping its current item
+     * @param row row number
+     * @param column column number
+     * @return the updated inventory
+     */
+    InventoryContents unbind(int row, int column);
+
+    /**
+     * Runs an action on the contents and writes every slot it changed to the opened inventory at once
+     * @param action the action to run on the contents
+     * @return the updated inventory
+     */
+    InventoryContents batch(Consumer<InventoryContents> action);
+
+    /**
+     * Writes the slots changed since the last flush to the opened inventory,
+     * this is done automatically at the end of every tick
+     * @return the updated inventory
+     */
+    InventoryContents flush();
+
     /**
      * Get a property
      * @param name name of the property
@@ -196,35 +292,250 @@ public interface InventoryContents {
      */
     InventoryContents setProperty(String name, Object value);
 
+    /**
+     * Get a property
+     * @param key key of the property
+     * @param <T> type of the property
+     * @return property, or null if it is not set
+     */
+    <T> T property(PropertyKey<T> key);
+
+    /**
+     * Get a property
+     * @param key key of the property
+     * @param def value returned if the property is not set
+     * @param <T> type of the property
+     * @return property
+     */
+    <T> T property(PropertyKey<T> key, T def);
+
+    /**
+     * Set a property
+     * @param key key of the property
+     * @param value value of the property
+     * @param <T> type of the property
+     * @return the updated inventory
+     */
+    <T> InventoryContents setProperty(PropertyKey<T> key, T value);
+
+    /**
+     * Binds a slot to a property, the slot is rendered with the current value of the property
+     * and rendered again every time the property is set
+     * @param row row number
+     * @param column column number
+     * @param key key of the property
+     * @param renderer creates the item of the slot from the value of the property
+     * @param <T> type of the property
+     * @return the updated inventory
+     */
+    <T> InventoryContents bind(int row, int column, PropertyKey<T> key, Function<T, ClickableItem> renderer);
+
     /**
      * Implementation class of InventoryContents
      */
     class Impl implements InventoryContents {
 
+        private static final Object NULL = new Object();
+
         private final SmartInventory inv;
         private final UUID player;
 
-        private final ClickableItem[][] contents;
-
-        private final Pagination pagination = new Pagination.Impl();
-        private final Map<String, SlotIterator> iterators = new HashMap<>();
-        private final Map<String, Object> properties = new HashMap<>();
-
+        // Items indexed by row * columns + column, with a bit set in occupied for every non-null item
+        private final int rows, columns;
+        private final ClickableItem[] contents;
+        private final long[] occupied;
+        private final SlotLayout layout;
+
+        private Pagination pagination;
+        private Map<String, SlotIterator> iterators;
+
+        // Property values indexed by PropertyKey index, NULL marks a property explicitly set to null
+        private Object[] properties;
+
+        // Values of the property names without a PropertyKey, e.g. dynamic names only used through the string methods
+        private Map<String, Object> namedProperties;
+
+        // Slots rendered from properties or observable values
+        private Binding<?>[] bindings;
+        private int propertyBindings;
+
+        // Players viewing these contents, a single one unless the contents are shared
+        private final List<Player> viewers = new ArrayList<>(1);
+        private Inventory handle;
+        private boolean retained;
+
+        // Slots changed since the last flush, and the items last written to the opened inventory
+        private final long[] dirty;
+        private ItemStack[] shown;
+        private boolean flushScheduled;
+        private int batchDepth;
+
+        /**
+         * Creates the contents of an inventory
+         * @param inv the inventory
+         * @param player the player the contents are opened for, or null for the contents of a shared inventory
+         */
         public Impl(SmartInventory inv, UUID player) {
             this.inv = inv;
             this.player = player;
-            this.contents = new ClickableItem[inv.getRows()][inv.getColumns()];
+
+            this.rows = inv.getRows();
+            this.columns = inv.getColumns();
+            this.contents = new ClickableItem[rows * columns];
+            this.occupied = new long[(rows * columns + 63) >>> 6];
+            this.dirty = new long[occupied.length];
+            this.layout = inv.getLayout();
+
+            inv.getTemplate().ifPresent(template -> template.copyTo(contents, occupied));
+        }
+
+        /**
+         * Adds a player viewing these contents, used by the InventoryManager
+         * @param viewer the viewing player
+         */
+        public void addViewer(Player viewer) {
+            if (isViewer(viewer))
+                return;
+
+            viewers.add(viewer);
+
+            // Shared contents stay bound to their inventory while they have viewers
+            if (player == null || !viewer.getUniqueId().equals(player))
+                return;
+
+            Inventory top = viewer.getOpenInventory().getTopInventory();
+
+            // Already bound when opened in place of another inventory
+            if (handle != top)
+                bind(top);
+        }
+
+        /**
+         * Removes a player viewing these contents, used by the InventoryManager
+         * @param viewer the player not viewing the contents anymore
+         */
+        public void removeViewer(Player viewer) {
+            for (int i = 0; i < viewers.size(); i++) {
+                if (viewers.get(i) == viewer) {
+                    viewers.remove(i);
+                    break;
+                }
+            }
+
+            if (player != null && viewers.isEmpty())
+                bind(null);
+        }
+
+        /**
+         * Gets a player viewing these contents, the first one for the contents of a shared inventory
+         * @return the player, or null if the contents are not opened
+         */
+        public Player getViewer() {
+            return viewers.isEmpty() ? null : viewers.get(0);
+        }
+
+        /**
+         * Checks if a player is currently viewing these contents
+         * @param viewer the player
+         * @return true if the player is a viewer, false otherwise
+         */
+        public boolean isViewer(Player viewer) {
+            for (int i = 0; i < viewers.size(); i++) {
+                if (viewers.get(i) == viewer)
+                    return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * Binds these contents to the inventory displaying them, filled with the current contents
+         * @param handle the opened inventory, or null if the contents are not displayed anymore
+         */
+        public void bind(Inventory handle) {
+            this.handle = handle;
+
+            Arrays.fill(dirty, 0);
+            this.shown = null;
+
+            if (handle == null)
+                return;
+
+            this.shown = new ItemStack[contents.length];
+
+            for (int slot = 0; slot < contents.length; slot++) {
+                ClickableItem item = contents[slot];
+
+                if (item != null && item.getItem() != null)
+                    shown[slot] = item.getItem().clone();
+            }
         }
 
+        /**
+         * Binds these contents to an inventory still displaying the contents of another inventory with the same layout,
+         * writing only the slots whose item differs
+         * @param handle the opened inventory
+         */
+        public void bindInPlace(Inventory handle) {
+            ItemStack[] current = handle.getContents();
+
+            this.handle = handle;
+            this.shown = new ItemStack[contents.length];
+
+            Arrays.fill(dirty, 0);
+
+            for (int slot = 0; slot < current.length; slot++) {
+                int index = layout.toIndex(slot);
+                ItemStack item = index != -1 && contents[index] != null ? contents[index].getItem() : null;
+
+                if (index != -1)
+                    shown[index] = item != null ? item.clone() : null;
+
+                if (!Objects.equals(item, current[slot]))
+                    handle.setItem(slot, item);
+            }
+        }
+
+        /**
+         * Releases the bindings of these contents once they are closed, used by the InventoryManager
+         */
+        public void dispose() {
+            if (bindings == null)
+                return;
+
+            for (int slot = 0; slot < bindings.length; slot++)
+                removeBinding(slot);
+        }
+
+        /**
+         * Sets if these contents are retained by the navigation history of the InventoryManager,
+         * retained contents are not disposed when they are replaced
+         * @param retained true if retained, false otherwise
+         */
+        public void setRetained(boolean retained) { this.retained = retained; }
+
+        public boolean isRetained() { return retained; }
+
+        /**
+         * Returns if these contents are the contents of a shared inventory
+         * @return true if shared, false otherwise
+         */
+        public boolean isShared() { return player == null; }
+
         @Override
         public SmartInventory inventory() { return inv; }
 
         @Override
-        public Pagination pagination() { return pagination; }
+        public Pagination pagination() {
+            if (pagination == null)
+                pagination = new Pagination.Impl(this);
+
+            return pagination;
+        }
 
         @Override
         public Optional<SlotIterator> iterator(String id) {
-            return Optional.ofNullable(this.iterators.get(id));
+            return iterators != null ? Optional.ofNullable(this.iterators.get(id)) : Optional.empty();
         }
 
         @Override
@@ -232,6 +543,9 @@ public interface InventoryContents {
             SlotIterator iterator = new SlotIterator.Impl(this, inv,
                     type, startRow, startColumn);
 
+            if (iterators == null)
+                iterators = new HashMap<>();
+
             this.iterators.put(id, iterator);
             return iterator;
         }
@@ -252,28 +566,47 @@ public interface InventoryContents {
         }
 
         @Override
-        public ClickableItem[][] all() { return contents; }
+        public SlotIterator newIterator(String id, SlotPath path) {
+            SlotIterator iterator = newIterator(path);
+
+            if (iterators == null)
+                iterators = new HashMap<>();
+
+            this.iterators.put(id, iterator);
+            return iterator;
+        }
 
         @Override
-        public Optional<SlotPos> firstEmpty() {
-            for (int row = 0; row < contents.length; row++) {
-                for(int column = 0; column < contents[0].length; column++) {
-                    if(this.get(row, column).isEmpty())
-                        return Optional.of(new SlotPos(row, column));
-                }
+        public SlotIterator newIterator(SlotPath path) {
+            for (int i = 0; i < path.length(); i++) {
+                if (path.get(i) >= contents.length)
+                    throw new IllegalArgumentException("The path goes through the slot " + path.get(i)
+                            + ", outside of the inventory");
             }
 
-            return Optional.empty();
+            return new SlotIterator.Impl(this, inv, path);
         }
 
         @Override
-        public Optional<ClickableItem> get(int row, int column) {
-            if(row >= contents.length)
-                return Optional.empty();
-            if(column >= contents[row].length)
-                return Optional.empty();
+        public ClickableItem[][] all() {
+            ClickableItem[][] all = new ClickableItem[rows][];
 
-            return Optional.ofNullable(contents[row][column]);
+            for (int row = 0; row < rows; row++)
+                all[row] = Arrays.copyOfRange(contents, row * columns, (row + 1) * columns);
+
+            return all;
+        }
+
+        @Override
+        public Optional<SlotPos> firstEmpty() {
+            int slot = firstEmptySlot();
+
+            return slot != -1 ? Optional.of(SlotPos.ofSlot(slot, columns)) : Optional.empty();
+        }
+
+        @Override
+        public Optional<ClickableItem> get(int row, int column) {
+            return Optional.ofNullable(getOrNull(row, column));
         }
 
         @Override
@@ -281,15 +614,29 @@ public interface InventoryContents {
             return get(slotPos.getRow(), slotPos.getColumn());
         }
 
+        @Override
+        public ClickableItem getOrNull(int row, int column) {
+            if(row < 0 || row >= rows)
+                return null;
+            if(column < 0 || column >= columns)
+                return null;
+
+            return contents[row * columns + column];
+        }
+
+        @Override
+        public ClickableItem getOrNull(int slot) {
+            return slot >= 0 && slot < contents.length ? contents[slot] : null;
+        }
+
         @Override
         public InventoryContents set(int row, int column, ClickableItem item) {
-            if(row >= contents.length)
+            if(row < 0 || row >= rows)
                 return this;
-            if(column >= contents[row].length)
+            if(column < 0 || column >= columns)
                 return this;
 
-            contents[row][column] = item;
-            update(row, column, item != null ? item.getItem() : null);
+            setSlot(row * columns + column, item);
             return this;
         }
 
@@ -298,44 +645,50 @@ public interface InventoryContents {
             return set(slotPos.getRow(), slotPos.getColumn(), item);
         }
 
+        @Override
+        public InventoryContents set(int slot, ClickableItem item) {
+            if(slot >= 0 && slot < contents.length)
+                setSlot(slot, item);
+
+            return this;
+        }
+
         @Override
         public InventoryContents add(ClickableItem item) {
-            for(int row = 0; row < contents.length; row++) {
-                for(int column = 0; column < contents[0].length; column++) {
-                    if(contents[row][column] == null) {
-                        set(row, column, item);
-                        return this;
-                    }
-                }
-            }
+            int slot = firstEmptySlot();
+
+            if (slot != -1)
+                setSlot(slot, item);
 
             return this;
         }
 
         @Override
         public InventoryContents fill(ClickableItem item) {
-            for(int row = 0; row < contents.length; row++)
-                for(int column = 0; column < contents[row].length; column++)
-                    set(row, column, item);
+            for(int slot = 0; slot < contents.length; slot++)
+                setSlot(slot, item);
 
             return this;
         }
 
         @Override
         public InventoryContents fillRow(int row, ClickableItem item) {
-            if(row >= contents.length)
+            if(row < 0 || row >= rows)
                 return this;
 
-            for(int column = 0; column < contents[row].length; column++)
-                set(row, column, item);
+            for(int column = 0; column < columns; column++)
+                setSlot(row * columns + column, item);
 
             return this;
         }
 
         @Override
         public InventoryContents fillColumn(int column, ClickableItem item) {
-            for(int row = 0; row < contents.length; row++)
-                set(row, column, item);
+            if(column < 0 || column >= columns)
+                return this;
+
+            for(int row = 0; row < rows; row++)
+                setSlot(row * columns + column, item);
 
             return this;
         }
@@ -368,35 +721,258 @@ public interface InventoryContents {
         @SuppressWarnings("unchecked")
         @Override
         public <T> T property(String name) {
-            return (T) properties.get(name);
+            return property(name, null);
         }
 
         @SuppressWarnings("unchecked")
         @Override
         public <T> T property(String name, T def) {
-            return properties.containsKey(name) ? (T) properties.get(name) : def;
+            // Reading a name must not assign it an index, unknown names are never stored in the array
+            if (PropertyKey.isIndexed(name))
+                return (T) property(PropertyKey.named(name), def);
+
+            if (namedProperties == null || !namedProperties.containsKey(name))
+                return def;
+
+            return (T) namedProperties.get(name);
         }
 
         @Override
         public InventoryContents setProperty(String name, Object value) {
-            properties.put(name, value);
+            if (PropertyKey.isIndexed(name))
+                return setProperty(PropertyKey.named(name), value);
+
+            if (namedProperties == null)
+                namedProperties = new HashMap<>();
+
+            namedProperties.put(name, value);
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> InventoryContents bind(int row, int column, String name, Function<T, ClickableItem> renderer) {
+            return bind(row, column, (PropertyKey<T>) (PropertyKey<?>) PropertyKey.named(name), renderer);
+        }
+
+        @Override
+        public <T> T property(PropertyKey<T> key) {
+            return property(key, null);
+        }
+
+        @Override
+        public <T> T property(PropertyKey<T> key, T def) {
+            int index = key.index();
+
+            if (properties == null || index >= properties.length || properties[index] == null) {
+                // Set through the string methods before a key of the name was created
+                if (namedProperties != null && namedProperties.containsKey(key.getName()))
+                    return key.cast(namedProperties.get(key.getName()));
+
+                return def;
+            }
+
+            Object value = properties[index];
+            return value != NULL ? key.cast(value) : null;
+        }
+
+        @Override
+        public <T> InventoryContents setProperty(PropertyKey<T> key, T value) {
+            int index = key.index();
+
+            if (properties == null || index >= properties.length)
+                properties = Arrays.copyOf(properties != null ? properties : new Object[0], index + 1);
+
+            properties[index] = value != null ? value : NULL;
+
+            if (namedProperties != null)
+                namedProperties.remove(key.getName());
+
+            if (propertyBindings > 0) {
+                for (Binding<?> binding : bindings) {
+                    if (binding != null && binding.property == index)
+                        binding.render(value);
+                }
+            }
+
             return this;
         }
 
-        private void update(int row, int column, ItemStack item) {
-            Player currentPlayer = Bukkit.getPlayer(player);
+        @Override
+        public <T> InventoryContents bind(int row, int column, PropertyKey<T> key, Function<T, ClickableItem> renderer) {
+            if(row < 0 || row >= rows || column < 0 || column >= columns)
+                return this;
+
+            Binding<T> binding = new Binding<>(row * columns + column, renderer, key.index(), null);
+            addBinding(binding);
+
+            propertyBindings++;
+            binding.render(property(key));
+
+            return this;
+        }
 
-            if (currentPlayer == null) {
+        @Override
+        public <T> InventoryContents bind(int row, int column, Observable<T> observable, Function<T, ClickableItem> renderer) {
+            if(row < 0 || row >= rows || column < 0 || column >= columns)
+                return this;
+
+            Binding<T> binding = new Binding<>(row * columns + column, renderer, -1, observable);
+            addBinding(binding);
+
+            observable.subscribe(binding);
+            binding.render(observable.get());
+
+            return this;
+        }
+
+        @Override
+        public InventoryContents unbind(int row, int column) {
+            if(row >= 0 && row < rows && column >= 0 && column < columns)
+                removeBinding(row * columns + column);
+
+            return this;
+        }
+
+        private void addBinding(Binding<?> binding) {
+            if (bindings == null)
+                bindings = new Binding<?>[contents.length];
+
+            removeBinding(binding.slot);
+            bindings[binding.slot] = binding;
+        }
+
+        private void removeBinding(int slot) {
+            if (bindings == null || bindings[slot] == null)
                 return;
+
+            Binding<?> binding = bindings[slot];
+            bindings[slot] = null;
+
+            if (binding.property != -1)
+                propertyBindings--;
+
+            binding.release();
+        }
+
+        @Override
+        public InventoryContents batch(Consumer<InventoryContents> action) {
+            batchDepth++;
+
+            try {
+                action.accept(this);
+            } finally {
+                if (--batchDepth == 0)
+                    flush();
+            }
+
+            return this;
+        }
+
+        @Override
+        public InventoryContents flush() {
+            this.flushScheduled = false;
+
+            if (handle == null) {
+                Arrays.fill(dirty, 0);
+                return this;
             }
 
-            if(!inv.getManager().getOpenedPlayers(inv).contains(currentPlayer))
+            for (int i = 0; i < dirty.length; i++) {
+                long word = dirty[i];
+                dirty[i] = 0;
+
+                while (word != 0) {
+                    int slot = (i << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+
+                    int target = layout.toSlot(slot);
+                    ItemStack item = contents[slot] != null ? contents[slot].getItem() : null;
+
+                    if (Objects.equals(item, shown[slot]))
+                        continue;
+
+                    // Keep a copy, the provider may modify its item and set it again
+                    shown[slot] = item != null ? item.clone() : null;
+                    handle.setItem(target, item);
+                }
+            }
+
+            return this;
+        }
+
+        @Override
+        public int firstEmptySlot() {
+            for (int i = 0; i < occupied.length; i++) {
+                long free = ~occupied[i];
+
+                if (free == 0)
+                    continue;
+
+                int slot = (i << 6) + Long.numberOfTrailingZeros(free);
+                return slot < contents.length ? slot : -1;
+            }
+
+            return -1;
+        }
+
+        private void setSlot(int slot, ClickableItem item) {
+            contents[slot] = item;
+
+            if (item != null)
+                occupied[slot >>> 6] |= 1L << slot;
+            else
+                occupied[slot >>> 6] &= ~(1L << slot);
+
+            update(slot);
+        }
+
+        private void update(int slot) {
+            // Indices not displayed by the inventory are never written to it
+            if (handle == null || !layout.isValid(slot))
                 return;
 
-            Inventory topInventory = currentPlayer.getOpenInventory().getTopInventory();
-            topInventory.setItem(inv.getColumns() * row + column, item);
+            dirty[slot >>> 6] |= 1L << slot;
+
+            if (!flushScheduled && batchDepth == 0) {
+                this.flushScheduled = true;
+                inv.getManager().scheduleFlush(this);
+            }
+        }
+
+        private final class Binding<T> implements Consumer<T> {
+
+            private final int slot;
+            private final Function<T, ClickableItem> renderer;
+
+            // Index of the bound property, or -1 when bound to an observable
+            private final int property;
+            private final Observable<T> observable;
+
+            private Binding(int slot, Function<T, ClickableItem> renderer, int property, Observable<T> observable) {
+                this.slot = slot;
+                this.renderer = renderer;
+                this.property = property;
+                this.observable = observable;
+            }
+
+            @SuppressWarnings("unchecked")
+            private void render(Object value) {
+                setSlot(slot, renderer.apply((T) value));
+            }
+
+            private void release() {
+                if (observable != null)
+                    observable.unsubscribe(this);
+            }
+
+            @Override
+            public void accept(T value) {
+                render(value);
+            }
+
         }
 
     }
 
-}
\ No newline at end of file
+}
@@ -2,6 +2,8 @@ package at.noahb.smartinvs.content;
 
 import org.bukkit.entity.Player;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface InventoryProvider {
 
     /**
@@ -11,6 +13,19 @@ public interface InventoryProvider {
      */
     void init(Player player, InventoryContents contents);
 
+    /**
+     * asynchronous initialization method of a new inventory, the inventory is opened on the main thread
+     * once the returned future completes, unless the player left or opened another inventory meanwhile.
+     * By default, calls {@link #init(Player, InventoryContents)} and completes immediately.
+     * @param player player the inventory gets opened for
+     * @param contents content of the inventory
+     * @return a future completed once the contents are initialized
+     */
+    default CompletableFuture<Void> initAsync(Player player, InventoryContents contents) {
+        init(player, contents);
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * used to update the inventory
      * @param player player the inventory gets opened for
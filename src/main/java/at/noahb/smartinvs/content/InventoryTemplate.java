@@ -0,0 +1,90 @@
+package at.noahb.smartinvs.content;
+
+import at.noahb.smartinvs.ClickableItem;
+import at.noahb.smartinvs.SmartInventory;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Static layout of an inventory, rendered once and copied into the contents of every opening
+ */
+public final class InventoryTemplate {
+
+    private final ClickableItem[] items;
+    private final long[] occupied;
+
+    // Item stacks of the template, indexed by the slots of the inventory displaying it
+    private final ItemStack[] stacks;
+
+    private InventoryTemplate(ClickableItem[] items, ItemStack[] stacks) {
+        this.items = items;
+        this.stacks = stacks;
+
+        this.occupied = new long[(items.length + 63) >>> 6];
+
+        for (int slot = 0; slot < items.length; slot++) {
+            if (items[slot] != null)
+                occupied[slot >>> 6] |= 1L << slot;
+        }
+    }
+
+    /**
+     * Renders a template for an inventory
+     * @param inv the inventory the template is rendered for
+     * @param layout the layout setting the items of the template
+     * @return the rendered template
+     */
+    public static InventoryTemplate render(SmartInventory inv, Consumer<InventoryContents> layout) {
+        InventoryContents contents = new InventoryContents.Impl(inv, null);
+        layout.accept(contents);
+
+        int rows = inv.getRows();
+        int columns = inv.getColumns();
+
+        SlotLayout slotLayout = inv.getLayout();
+
+        ClickableItem[] items = new ClickableItem[rows * columns];
+        ItemStack[] stacks = new ItemStack[slotLayout.getSize()];
+
+        for (int index = 0; index < items.length; index++) {
+            ClickableItem item = contents.getOrNull(index);
+            items[index] = item;
+
+            if (item != null && slotLayout.isValid(index))
+                stacks[slotLayout.toSlot(index)] = item.getItem();
+        }
+
+        return new InventoryTemplate(items, stacks);
+    }
+
+    /**
+     * Gets the item of the template at a slot
+     * @param slot the slot index, row * columns + column
+     * @return the item, or null if the template has no item at this slot
+     */
+    public ClickableItem get(int slot) {
+        return slot < items.length ? items[slot] : null;
+    }
+
+    /**
+     * Copies the items of the template into contents of the same size
+     * @param contents the items of the contents, indexed by row * columns + column
+     * @param occupied the occupancy bitmap of the contents
+     */
+    void copyTo(ClickableItem[] contents, long[] occupied) {
+        System.arraycopy(this.items, 0, contents, 0, Math.min(this.items.length, contents.length));
+        System.arraycopy(this.occupied, 0, occupied, 0, Math.min(this.occupied.length, occupied.length));
+    }
+
+    /**
+     * Returns a copy of the item stacks of the template, indexed by the slots of the inventory displaying it
+     * @param size the size of the returned array
+     * @return the item stacks of the template
+     */
+    public ItemStack[] stacks(int size) {
+        return Arrays.copyOf(stacks, size);
+    }
+
+}
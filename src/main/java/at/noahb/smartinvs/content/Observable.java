@@ -0,0 +1,46 @@
+package at.noahb.smartinvs.content;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Value notifying its listeners when it changes, slots of inventory contents can be bound to it.
+ * Values must be set from the main thread when bound to contents.
+ * @param <T> the type of the value
+ */
+public class Observable<T> {
+
+    private T value;
+    private final List<Consumer<? super T>> listeners = new CopyOnWriteArrayList<>();
+
+    public Observable(T value) {
+        this.value = value;
+    }
+
+    public T get() { return value; }
+
+    /**
+     * Sets the value, notifying the listeners if it changed
+     * @param value the new value
+     */
+    public void set(T value) {
+        if (Objects.equals(this.value, value))
+            return;
+
+        this.value = value;
+
+        for (Consumer<? super T> listener : listeners)
+            listener.accept(value);
+    }
+
+    public void subscribe(Consumer<? super T> listener) {
+        listeners.add(listener);
+    }
+
+    public void unsubscribe(Consumer<? super T> listener) {
+        listeners.remove(listener);
+    }
+
+}
@@ -0,0 +1,238 @@
+package at.noahb.smartinvs.content;
+
+import at.noahb.smartinvs.ClickableItem;
+import org.bukkit.Bukkit;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+
+public interface PageSource {
+
+    /**
+     * Gets the total amount of items
+     * @return the item count
+     */
+    int getItemCount();
+
+    /**
+     * Gets the items of a range, loaded only when the range is requested
+     * @param offset the index of the first item
+     * @param limit the maximum amount of items
+     * @return the items of the range, at most limit items
+     */
+    ClickableItem[] getItems(int offset, int limit);
+
+    /**
+     * Creates a source of an item array
+     * @param items the items
+     * @return the source
+     */
+    static PageSource of(ClickableItem... items) {
+        return new ArraySource(items);
+    }
+
+    /**
+     * Wraps a source with a page cache, which can be shared between the paginations of every viewer
+     * @param source the source loading the items
+     * @param maxPages the maximum amount of cached pages, the least recently used ones are evicted first
+     * @return the cached source
+     */
+    static Cached cached(PageSource source, int maxPages) {
+        return new Cached(source, maxPages, 0, null);
+    }
+
+    /**
+     * Wraps a source with a page cache, which can be shared between the paginations of every viewer
+     * @param source the source loading the items
+     * @param maxPages the maximum amount of cached pages, the least recently used ones are evicted first
+     * @param prefetch the amount of pages before and after a requested page which are loaded after it
+     * @param executor the executor loading the prefetched pages, the requested page is returned without waiting for them
+     * @return the cached source
+     */
+    static Cached cached(PageSource source, int maxPages, int prefetch, Executor executor) {
+        if (prefetch > 0 && executor == null)
+            throw new IllegalArgumentException("Prefetching pages requires an executor.");
+
+        return new Cached(source, maxPages, prefetch, executor);
+    }
+
+    class ArraySource implements PageSource {
+
+        private final ClickableItem[] items;
+
+        private ArraySource(ClickableItem[] items) {
+            this.items = items;
+        }
+
+        @Override
+        public int getItemCount() { return items.length; }
+
+        @Override
+        public ClickableItem[] getItems(int offset, int limit) {
+            int from = Math.min(offset, items.length);
+            return Arrays.copyOfRange(items, from, Math.min(from + limit, items.length));
+        }
+
+    }
+
+    class Cached implements PageSource {
+
+        private final PageSource source;
+        private final int prefetch;
+        private final Executor executor;
+
+        private final Map<Long, ClickableItem[]> pages;
+        private final Set<Long> prefetching = new HashSet<>();
+        private volatile int itemCount = -1;
+
+        // Bumped by every invalidation, pages and counts loaded before it are dropped
+        private long generation;
+
+        private long hits, misses;
+
+        private Cached(PageSource source, int maxPages, int prefetch, Executor executor) {
+            if (maxPages < 1)
+                throw new IllegalArgumentException("The page cache must hold at least one page, found: " + maxPages);
+
+            this.source = source;
+            this.prefetch = Math.max(0, prefetch);
+            this.executor = executor;
+
+            this.pages = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, ClickableItem[]> eldest) {
+                    return size() > maxPages;
+                }
+            };
+        }
+
+        @Override
+        public int getItemCount() {
+            int count = itemCount;
+
+            if (count != -1)
+                return count;
+
+            long loadedGeneration;
+
+            synchronized (pages) {
+                loadedGeneration = generation;
+            }
+
+            count = source.getItemCount();
+
+            synchronized (pages) {
+                if (generation == loadedGeneration)
+                    itemCount = count;
+            }
+
+            return count;
+        }
+
+        @Override
+        public ClickableItem[] getItems(int offset, int limit) {
+            ClickableItem[] items = load(offset, limit);
+
+            for (int i = 1; i <= prefetch; i++) {
+                if (offset - i * limit >= 0)
+                    prefetch(offset - i * limit, limit);
+                if (offset + i * limit < getItemCount())
+                    prefetch(offset + i * limit, limit);
+            }
+
+            return items.clone();
+        }
+
+        /**
+         * Clears the cached pages and item count, e.g. when the underlying data changed
+         */
+        public void invalidate() {
+            synchronized (pages) {
+                pages.clear();
+                itemCount = -1;
+                generation++;
+            }
+        }
+
+        public long getHits() {
+            synchronized (pages) {
+                return hits;
+            }
+        }
+
+        public long getMisses() {
+            synchronized (pages) {
+                return misses;
+            }
+        }
+
+        private ClickableItem[] load(int offset, int limit) {
+            long key = key(offset, limit);
+            long loadedGeneration;
+
+            synchronized (pages) {
+                loadedGeneration = generation;
+
+                ClickableItem[] items = pages.get(key);
+
+                if (items != null) {
+                    hits++;
+                    return items;
+                }
+
+                misses++;
+            }
+
+            // Loaded without holding the lock, pages may be loaded from another thread
+            ClickableItem[] items = source.getItems(offset, limit);
+
+            synchronized (pages) {
+                if (generation == loadedGeneration)
+                    pages.put(key, items);
+            }
+
+            return items;
+        }
+
+        private void prefetch(int offset, int limit) {
+            long key = key(offset, limit);
+            long loadedGeneration;
+
+            synchronized (pages) {
+                // Checked without touching the access order, so the requested page stays the most recently used one
+                if (pages.containsKey(key) || !prefetching.add(key))
+                    return;
+
+                loadedGeneration = generation;
+            }
+
+            executor.execute(() -> {
+                try {
+                    ClickableItem[] items = source.getItems(offset, limit);
+
+                    synchronized (pages) {
+                        if (generation == loadedGeneration)
+                            pages.putIfAbsent(key, items);
+                    }
+                } catch (Exception e) {
+                    Bukkit.getLogger().log(Level.WARNING, "Error while prefetching a page of SmartInventory:", e);
+                } finally {
+                    synchronized (pages) {
+                        prefetching.remove(key);
+                    }
+                }
+            });
+        }
+
+        private static long key(int offset, int limit) {
+            return ((long) offset << 32) | limit;
+        }
+
+    }
+
+}
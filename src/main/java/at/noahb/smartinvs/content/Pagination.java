@@ -1,8 +1,12 @@
 package at.noahb.smartinvs.content;
 
 import at.noahb.smartinvs.ClickableItem;
+import org.bukkit.Bukkit;
 
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
 
 public interface Pagination {
 
@@ -61,6 +65,15 @@ public interface Pagination {
      */
     Pagination last();
 
+    /**
+     * Switches the opened inventory to another page, without opening it again: the items of the page are written
+     * into the slots filled by the last {@link #addToIterator(SlotIterator)} call, and only the slots whose item
+     * changed are sent to the player
+     * @param page the page to be switched to
+     * @return the updated pagination
+     */
+    Pagination show(int page);
+
     /**
      * adds the page to the iterator
      * @param iterator the iterator to add the page to
@@ -75,6 +88,24 @@ public interface Pagination {
      */
     Pagination setItems(ClickableItem... items);
 
+    /**
+     * Sets the source the items of a page are loaded from, only the items of the requested pages are loaded
+     * @param source the source of the items
+     * @return the updated pagination
+     */
+    Pagination setSource(PageSource source);
+
+    /**
+     * Loads the items of the pages asynchronously: addToIterator shows placeholders in the slots of the page,
+     * which are replaced on the main thread once the items are loaded, unless another page has been requested meanwhile.
+     * The item count is loaded with the items, isLast, next and last use the count of the last completed load,
+     * so the pagination stays on the first page until a page has been loaded
+     * @param executor the executor loading the items, or null to load them synchronously
+     * @param placeholder the item shown while the items are loading
+     * @return the updated pagination
+     */
+    Pagination setAsync(Executor executor, ClickableItem placeholder);
+
     /**
      * Sets the amount of how many items should be per page
      * @param itemsPerPage the amount of items per page
@@ -85,16 +116,38 @@ public interface Pagination {
 
     class Impl implements Pagination {
 
+        private final InventoryContents contents;
+
         private int currentPage;
 
-        private ClickableItem[] items = new ClickableItem[0];
+        private PageSource source = PageSource.of();
         private int itemsPerPage = 5;
 
+        private Executor executor;
+        private ClickableItem placeholder;
+        private int loadGeneration;
+
+        // Item count of the last completed asynchronous load, or -1 before the first one
+        private int loadedItemCount = -1;
+
+        // Slots filled by the last addToIterator call, rewritten when switching pages in place
+        private int[] pageSlots;
+        private int pageSlotCount;
+
+        public Impl() {
+            this(null);
+        }
+
+        public Impl(InventoryContents contents) {
+            this.contents = contents;
+        }
+
         @Override
         public ClickableItem[] getPageItems() {
-            return Arrays.copyOfRange(items,
-                    currentPage * itemsPerPage,
-                    (currentPage + 1) * itemsPerPage);
+            ClickableItem[] items = source.getItems(currentPage * itemsPerPage, itemsPerPage);
+
+            // Pages are always full, padded with null items after the last item
+            return items.length == itemsPerPage ? items : Arrays.copyOf(items, itemsPerPage);
         }
 
         @Override
@@ -115,8 +168,7 @@ public interface Pagination {
 
         @Override
         public boolean isLast() {
-            int pageCount = (int) Math.ceil((double) this.items.length / this.itemsPerPage);
-            return this.currentPage >= pageCount - 1;
+            return this.currentPage >= getPageCount() - 1;
         }
 
         @Override
@@ -143,25 +195,72 @@ public interface Pagination {
 
         @Override
         public Pagination last() {
-            this.currentPage = this.items.length / this.itemsPerPage;
+            this.currentPage = Math.max(0, getPageCount() - 1);
             return this;
         }
 
         @Override
         public Pagination addToIterator(SlotIterator iterator) {
+            if(executor != null)
+                return addToIteratorAsync(iterator);
+
+            int[] slots = new int[itemsPerPage];
+            int count = 0;
+
             for(ClickableItem item : getPageItems()) {
-                iterator.next().set(item);
+                if(place(iterator.next(), item))
+                    slots[count++] = iterator.slot();
 
                 if(iterator.ended())
                     break;
             }
 
+            this.pageSlots = slots;
+            this.pageSlotCount = count;
+
+            return this;
+        }
+
+        @Override
+        public Pagination show(int page) {
+            if (contents == null)
+                throw new IllegalStateException("Switching pages in place requires a pagination created by its InventoryContents.");
+
+            this.currentPage = page;
+
+            // Nothing has been added to an iterator yet
+            if (pageSlots == null)
+                return this;
+
+            if (executor != null) {
+                contents.batch(batch -> {
+                    for (int i = 0; i < pageSlotCount; i++)
+                        batch.set(pageSlots[i], placeholder);
+                });
+
+                load(pageSlots, pageSlotCount);
+                return this;
+            }
+
+            ClickableItem[] items = getPageItems();
+
+            contents.batch(batch -> {
+                for (int i = 0; i < pageSlotCount; i++)
+                    batch.set(pageSlots[i], i < items.length ? items[i] : null);
+            });
+
             return this;
         }
 
         @Override
         public Pagination setItems(ClickableItem... items) {
-            this.items = items;
+            return setSource(PageSource.of(items));
+        }
+
+        @Override
+        public Pagination setSource(PageSource source) {
+            this.source = source;
+            this.loadedItemCount = -1;
             return this;
         }
 
@@ -171,6 +270,90 @@ public interface Pagination {
             return this;
         }
 
+        @Override
+        public Pagination setAsync(Executor executor, ClickableItem placeholder) {
+            if (executor != null && contents == null)
+                throw new IllegalStateException("Asynchronous loading requires a pagination created by its InventoryContents.");
+            if (executor != null && placeholder == null)
+                throw new IllegalArgumentException("The placeholder of asynchronous loading must be set.");
+
+            this.executor = executor;
+            this.placeholder = placeholder;
+            return this;
+        }
+
+        // Only the slots an item has been placed at are switched by show, the others belong to the provider
+        private static boolean place(SlotIterator iterator, ClickableItem item) {
+            if(iterator instanceof SlotIterator.Impl impl)
+                return impl.place(item);
+
+            iterator.set(item);
+            return iterator.get().orElse(null) == item;
+        }
+
+        private Pagination addToIteratorAsync(SlotIterator iterator) {
+            int[] slots = new int[itemsPerPage];
+            int count = 0;
+
+            while(count < itemsPerPage) {
+                if(place(iterator.next(), placeholder))
+                    slots[count++] = iterator.slot();
+
+                if(iterator.ended())
+                    break;
+            }
+
+            this.pageSlots = slots;
+            this.pageSlotCount = count;
+
+            load(slots, count);
+            return this;
+        }
+
+        /**
+         * Loads the items of the current page on the executor, replacing the placeholders of the slots once loaded
+         */
+        private void load(int[] slots, int slotCount) {
+            int generation = ++loadGeneration;
+            int page = currentPage;
+            int offset = currentPage * itemsPerPage;
+            int limit = itemsPerPage;
+
+            PageSource pageSource = this.source;
+
+            CompletableFuture.supplyAsync(() -> new LoadedPage(pageSource.getItems(offset, limit), pageSource.getItemCount()), executor)
+                    .whenComplete((loaded, throwable) -> contents.inventory().getManager().runSync(() -> {
+                        if (throwable != null) {
+                            Bukkit.getLogger().log(Level.SEVERE, "Error while loading a page of SmartInventory:", throwable);
+                            return;
+                        }
+
+                        if (pageSource == source)
+                            loadedItemCount = loaded.itemCount();
+
+                        // Another page has been requested meanwhile
+                        if (generation != loadGeneration || page != currentPage)
+                            return;
+
+                        ClickableItem[] items = loaded.items();
+
+                        for (int i = 0; i < slotCount; i++) {
+                            // Only replace the placeholders the iterator could place
+                            if (contents.getOrNull(slots[i]) == placeholder)
+                                contents.set(slots[i], i < items.length ? items[i] : null);
+                        }
+                    }));
+        }
+
+        private int getPageCount() {
+            // The count of an asynchronous source is only queried on the executor
+            int itemCount = executor != null ? Math.max(0, loadedItemCount) : source.getItemCount();
+
+            return (itemCount + itemsPerPage - 1) / itemsPerPage;
+        }
+
+        private record LoadedPage(ClickableItem[] items, int itemCount) {}
+
     }
 
 }
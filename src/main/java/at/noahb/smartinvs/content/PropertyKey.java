@@ -0,0 +1,72 @@
+package at.noahb.smartinvs.content;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Typed key of an InventoryContents property, create keys once and keep them in constants.
+ * The name of every key is assigned a dense index, so the values of a property are stored in an array of the contents.
+ * Names only used through the string based property methods get no index and are stored in a map of the contents.
+ * @param <T> the type of the property value
+ */
+public final class PropertyKey<T> {
+
+    private static final Map<String, Integer> INDICES = new ConcurrentHashMap<>();
+    private static final Map<String, PropertyKey<Object>> NAMED = new ConcurrentHashMap<>();
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private final String name;
+    private final Class<T> type;
+    private final int index;
+
+    private PropertyKey(String name, Class<T> type, int index) {
+        this.name = name;
+        this.type = type;
+        this.index = index;
+    }
+
+    /**
+     * Creates a key of a property, keys with the same name refer to the same property
+     * @param name the name of the property, also used by the string based property methods
+     * @param type the type of the property value
+     * @param <T> the type of the property value
+     * @return the key
+     */
+    public static <T> PropertyKey<T> of(String name, Class<T> type) {
+        return new PropertyKey<>(name, type, INDICES.computeIfAbsent(name, key -> COUNT.getAndIncrement()));
+    }
+
+    /**
+     * Returns the untyped key of a property name, used by the string based property methods
+     * @param name the name of the property
+     * @return the cached key
+     */
+    static PropertyKey<Object> named(String name) {
+        return NAMED.computeIfAbsent(name, key -> of(key, Object.class));
+    }
+
+    /**
+     * Checks if a property name has been assigned an index by a key, without assigning it one
+     * @param name the name of the property
+     * @return true if a key of the name has been created, false otherwise
+     */
+    static boolean isIndexed(String name) {
+        return INDICES.containsKey(name);
+    }
+
+    public String getName() { return name; }
+    public Class<T> getType() { return type; }
+
+    int index() { return index; }
+
+    T cast(Object value) {
+        return type.cast(value);
+    }
+
+    @Override
+    public String toString() {
+        return "PropertyKey{" + name + ": " + type.getSimpleName() + "}";
+    }
+
+}
@@ -3,20 +3,21 @@ package at.noahb.smartinvs.content;
 import at.noahb.smartinvs.ClickableItem;
 import at.noahb.smartinvs.SmartInventory;
 
-import java.util.HashSet;
 import java.util.Optional;
-import java.util.Set;
 
 public interface SlotIterator {
 
 
     /**
      * Available types of the slot iterator
-     * Whether the slot iterator is horizontal or vertical
+     * Whether the slot iterator goes row by row, column by column,
+     * row by row alternating the direction, or clockwise from the borders to the center
      */
     enum Type {
         HORIZONTAL,
-        VERTICAL
+        VERTICAL,
+        SNAKE,
+        SPIRAL
     }
 
     /**
@@ -59,6 +60,19 @@ public interface SlotIterator {
      */
     SlotIterator blacklist(SlotPos slotPos);
 
+    /**
+     * Add a slot to the blacklist
+     * @param slot slot index of item to be blacklisted, row * columns + column
+     * @return updated slot iterator
+     */
+    SlotIterator blacklist(int slot);
+
+    /**
+     *
+     * @return the current slot index, row * columns + column
+     */
+    int slot();
+
     /**
      *
      * @return current row
@@ -116,23 +130,25 @@ public interface SlotIterator {
         private final InventoryContents contents;
         private final SmartInventory inv;
 
-        private final Type type;
+        private final SlotPath shape;
         private boolean started = false;
         private boolean allowOverride = true;
-        private int row, column;
+        private int slot;
+
+        // Bitset of the blacklisted slot indices
+        private final long[] blacklisted;
 
-        private final Set<SlotPos> blacklisted = new HashSet<>();
+        // The shape without the blacklisted slots, compiled on first use.
+        // If the current slot is not on the path, index is the path index of the next slot after it.
+        private SlotPath path;
+        private int index;
+        private boolean onPath;
 
         public Impl(InventoryContents contents, SmartInventory inv,
                     Type type, int startRow, int startColumn) {
 
-            this.contents = contents;
-            this.inv = inv;
-
-            this.type = type;
-
-            this.row = startRow;
-            this.column = startColumn;
+            this(contents, inv, SlotPath.of(type, inv.getRows(), inv.getColumns()),
+                    startRow * inv.getColumns() + startColumn);
         }
 
         public Impl(InventoryContents contents, SmartInventory inv,
@@ -141,50 +157,64 @@ public interface SlotIterator {
             this(contents, inv, type, 0, 0);
         }
 
+        public Impl(InventoryContents contents, SmartInventory inv,
+                    SlotPath shape, int startSlot) {
+
+            this.contents = contents;
+            this.inv = inv;
+            this.shape = shape;
+            this.slot = startSlot;
+            this.blacklisted = new long[(inv.getRows() * inv.getColumns() + 63) >>> 6];
+        }
+
+        public Impl(InventoryContents contents, SmartInventory inv,
+                    SlotPath shape) {
+
+            this(contents, inv, shape, shape.length() > 0 ? shape.get(0) : 0);
+        }
+
         @Override
         public Optional<ClickableItem> get() {
-            return contents.get(row, column);
+            return Optional.ofNullable(contents.getOrNull(slot));
         }
 
         @Override
         public SlotIterator set(ClickableItem item) {
-            if(canPlace())
-                contents.set(row, column, item);
-
+            place(item);
             return this;
         }
 
+        /**
+         * Sets the item at the current slot if the iterator may place it there
+         * @param item the item to set
+         * @return true if the item has been set, false otherwise
+         */
+        boolean place(ClickableItem item) {
+            if(!canPlace())
+                return false;
+
+            contents.set(slot, item);
+            return true;
+        }
+
         @Override
         public SlotIterator previous() {
-            if(row == 0 && column == 0) {
+            compile();
+
+            if(!this.started) {
                 this.started = true;
-                return this;
-            }
 
-            do {
-                if(!this.started) {
-                    this.started = true;
-                }
-                else {
-                    switch (type) {
-                        case HORIZONTAL -> {
-                            column--;
-                            if (column == 0) {
-                                column = inv.getColumns() - 1;
-                                row--;
-                            }
-                        }
-                        case VERTICAL -> {
-                            row--;
-                            if (row == 0) {
-                                row = inv.getRows() - 1;
-                                column--;
-                            }
-                        }
-                    }
-                }
+                if(canPlace())
+                    return this;
             }
-            while(!canPlace() && (row != 0 || column != 0));
+
+            int i = index - 1;
+
+            while(i > 0 && !isFree(path.get(i)))
+                i--;
+
+            if(i >= 0)
+                moveTo(i);
 
             return this;
         }
@@ -196,34 +226,31 @@ public interface SlotIterator {
                 return this;
             }
 
-            do {
-                if(!this.started) {
-                    this.started = true;
-                }
-                else {
-                    switch (type) {
-                        case HORIZONTAL -> {
-                            column = ++column % inv.getColumns();
-                            if (column == 0)
-                                row++;
-                        }
-                        case VERTICAL -> {
-                            row = ++row % inv.getRows();
-                            if (row == 0)
-                                column++;
-                        }
-                    }
-                }
+            if(!this.started) {
+                this.started = true;
+
+                if(canPlace())
+                    return this;
             }
-            while(!canPlace() && !ended());
+
+            int last = path.length() - 1;
+            int i = onPath ? index + 1 : index;
+
+            while(i < last && !isFree(path.get(i)))
+                i++;
+
+            if(i <= last)
+                moveTo(i);
 
             return this;
         }
 
         @Override
         public SlotIterator blacklist(int row, int column) {
-            this.blacklisted.add(SlotPos.of(row, column));
-            return this;
+            if (row < 0 || row >= inv.getRows() || column < 0 || column >= inv.getColumns())
+                return this;
+
+            return blacklist(row * inv.getColumns() + column);
         }
 
         @Override
@@ -232,21 +259,32 @@ public interface SlotIterator {
         }
 
         @Override
-        public int row() { return row; }
+        public SlotIterator blacklist(int slot) {
+            if (slot >= 0 && slot < inv.getRows() * inv.getColumns()) {
+                this.blacklisted[slot >>> 6] |= 1L << slot;
+                this.path = null;
+            }
+
+            return this;
+        }
+
+        @Override
+        public int slot() { return slot; }
+
+        @Override
+        public int row() { return slot / inv.getColumns(); }
 
         @Override
         public SlotIterator row(int row) {
-            this.row = row;
-            return this;
+            return moveTo(row, column());
         }
 
         @Override
-        public int column() { return column; }
+        public int column() { return slot % inv.getColumns(); }
 
         @Override
         public SlotIterator column(int column) {
-            this.column = column;
-            return this;
+            return moveTo(row(), column);
         }
 
         @Override
@@ -256,8 +294,9 @@ public interface SlotIterator {
 
         @Override
         public boolean ended() {
-            return row == inv.getRows() - 1
-                    && column == inv.getColumns() - 1;
+            compile();
+
+            return onPath ? index >= path.length() - 1 : index >= path.length();
         }
 
         @Override
@@ -269,10 +308,49 @@ public interface SlotIterator {
             return this;
         }
 
+        private SlotIterator moveTo(int row, int column) {
+            this.slot = row * inv.getColumns() + column;
+            this.path = null;
+            return this;
+        }
+
+        private void moveTo(int index) {
+            this.index = index;
+            this.onPath = true;
+            this.slot = path.get(index);
+        }
+
+        private void compile() {
+            if (path != null)
+                return;
+
+            this.path = shape.without(blacklisted);
+            this.index = path.indexOf(slot);
+            this.onPath = index != -1;
+
+            if (onPath)
+                return;
+
+            // Not on the path: the next slot is the first one following the current slot in the shape
+            int shapeIndex = shape.indexOf(slot);
+            this.index = 0;
+
+            for (int i = 0; i < shapeIndex; i++) {
+                if (!SlotPath.isSet(blacklisted, shape.get(i)))
+                    this.index++;
+            }
+        }
+
         private boolean canPlace() {
-            return !blacklisted.contains(SlotPos.of(row, column)) && (allowOverride || this.get().isEmpty());
+            compile();
+
+            return onPath && isFree(slot);
+        }
+
+        private boolean isFree(int slot) {
+            return allowOverride || contents.getOrNull(slot) == null;
         }
 
     }
 
-}
\ No newline at end of file
+}
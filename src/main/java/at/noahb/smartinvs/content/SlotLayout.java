@@ -0,0 +1,123 @@
+package at.noahb.smartinvs.content;
+
+import org.bukkit.event.inventory.InventoryType;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mapping between the contents indices (row * columns + column) of an inventory and the slots
+ * of the Bukkit inventory displaying them, computed once for every inventory type and size.
+ * A 3x3 workbench inventory fills the crafting matrix, every other inventory maps its indices to the same slots.
+ */
+public final class SlotLayout {
+
+    private static final Map<LayoutKey, SlotLayout> LAYOUTS = new ConcurrentHashMap<>();
+
+    private final int[] indexToSlot;
+    private final int[] slotToIndex;
+    private final long[] valid;
+    private final InventoryType.SlotType[] slotTypes;
+
+    private SlotLayout(InventoryType type, int rows, int columns) {
+        int cells = rows * columns;
+        int size = type == InventoryType.CHEST || type == InventoryType.ENDER_CHEST ? cells : type.getDefaultSize();
+        int offset = type == InventoryType.WORKBENCH && cells == 9 ? 1 : 0;
+
+        this.indexToSlot = new int[cells];
+        this.slotToIndex = new int[size];
+        this.valid = new long[(cells + 63) >>> 6];
+        this.slotTypes = new InventoryType.SlotType[size];
+
+        Arrays.fill(slotToIndex, -1);
+
+        for (int index = 0; index < cells; index++) {
+            int slot = index + offset;
+
+            if (slot >= size) {
+                indexToSlot[index] = -1;
+                continue;
+            }
+
+            indexToSlot[index] = slot;
+            slotToIndex[slot] = index;
+            valid[index >>> 6] |= 1L << index;
+        }
+
+        for (int slot = 0; slot < size; slot++)
+            slotTypes[slot] = slotType(type, slot);
+    }
+
+    /**
+     * Returns the layout of an inventory type and size
+     * @param type the type of the inventory
+     * @param rows the row count of the inventory
+     * @param columns the column count of the inventory
+     * @return the cached layout
+     */
+    public static SlotLayout of(InventoryType type, int rows, int columns) {
+        return LAYOUTS.computeIfAbsent(new LayoutKey(type, rows, columns),
+                key -> new SlotLayout(type, rows, columns));
+    }
+
+    /**
+     * Returns the slot of the Bukkit inventory displaying a contents index
+     * @param index the contents index, row * columns + column
+     * @return the slot, or -1 if the index is not displayed by the inventory
+     */
+    public int toSlot(int index) {
+        return index >= 0 && index < indexToSlot.length ? indexToSlot[index] : -1;
+    }
+
+    /**
+     * Returns the contents index displayed at a slot of the Bukkit inventory
+     * @param slot the slot of the inventory
+     * @return the contents index, or -1 if the slot does not display any index
+     */
+    public int toIndex(int slot) {
+        return slot >= 0 && slot < slotToIndex.length ? slotToIndex[slot] : -1;
+    }
+
+    /**
+     * Checks if a contents index is displayed by the inventory
+     * @param index the contents index, row * columns + column
+     * @return true if the index is displayed, false otherwise
+     */
+    public boolean isValid(int index) {
+        return index >= 0 && SlotPath.isSet(valid, index);
+    }
+
+    /**
+     * Returns the role of a slot of the Bukkit inventory, e.g. the result or fuel slot of a furnace
+     * @param slot the slot of the inventory
+     * @return the type of the slot, or OUTSIDE if the inventory has no such slot
+     */
+    public InventoryType.SlotType getSlotType(int slot) {
+        return slot >= 0 && slot < slotTypes.length ? slotTypes[slot] : InventoryType.SlotType.OUTSIDE;
+    }
+
+    /**
+     * Returns the size of the Bukkit inventory
+     * @return the slot count
+     */
+    public int getSize() { return slotToIndex.length; }
+
+    private static InventoryType.SlotType slotType(InventoryType type, int slot) {
+        return switch (type) {
+            case FURNACE, BLAST_FURNACE, SMOKER -> slot == 1 ? InventoryType.SlotType.FUEL
+                    : slot == 2 ? InventoryType.SlotType.RESULT
+                    : InventoryType.SlotType.CRAFTING;
+            case WORKBENCH -> slot == 0 ? InventoryType.SlotType.RESULT : InventoryType.SlotType.CRAFTING;
+            case ANVIL, SMITHING, GRINDSTONE -> slot == 2 ? InventoryType.SlotType.RESULT : InventoryType.SlotType.CRAFTING;
+            case BREWING -> slot == 4 ? InventoryType.SlotType.FUEL
+                    : slot == 3 ? InventoryType.SlotType.CRAFTING
+                    : InventoryType.SlotType.CONTAINER;
+            case ENCHANTING -> slot == 1 ? InventoryType.SlotType.FUEL : InventoryType.SlotType.CRAFTING;
+            default -> InventoryType.SlotType.CONTAINER;
+        };
+    }
+
+    private record LayoutKey(InventoryType type, int rows, int columns) {}
+
+}
@@ -0,0 +1,223 @@
+package at.noahb.smartinvs.content;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable sequence of slot indices (row * columns + column) a SlotIterator goes through.
+ * Paths are compiled once and shared between every iterator using the same shape and blacklist.
+ */
+public final class SlotPath {
+
+    private static final int MAX_CACHED_FILTERS = 256;
+
+    private static final Map<TypeKey, SlotPath> TYPE_PATHS = new ConcurrentHashMap<>();
+    private static final Map<FilterKey, SlotPath> FILTERED_PATHS = new ConcurrentHashMap<>();
+
+    private final int[] slots;
+
+    private SlotPath(int[] slots) {
+        this.slots = slots;
+    }
+
+    /**
+     * Returns the path going through a whole inventory in the order of a type
+     * @param type the type of the path
+     * @param rows the row count of the inventory
+     * @param columns the column count of the inventory
+     * @return the cached path
+     */
+    public static SlotPath of(SlotIterator.Type type, int rows, int columns) {
+        return TYPE_PATHS.computeIfAbsent(new TypeKey(type, rows, columns),
+                key -> new SlotPath(compile(type, rows, columns)));
+    }
+
+    /**
+     * Creates a path going through slots in the given order
+     * @param slots the slot indices, row * columns + column
+     * @return the path
+     */
+    public static SlotPath of(int... slots) {
+        for (int slot : slots) {
+            if (slot < 0)
+                throw new IllegalArgumentException("The slots of a path must be positive, found: " + slot);
+        }
+
+        return new SlotPath(slots.clone());
+    }
+
+    /**
+     * Creates a path going row by row through the slots marked with an 'x' in a mask, e.g.
+     * <pre>
+     * "xxxxxxxxx",
+     * "x.......x",
+     * "xxxxxxxxx"
+     * </pre>
+     * @param rows the rows of the mask, as wide as the inventory
+     * @return the path
+     */
+    public static SlotPath mask(String... rows) {
+        if (rows.length == 0)
+            return new SlotPath(new int[0]);
+
+        int columns = rows[0].length();
+        int[] slots = new int[rows.length * columns];
+        int length = 0;
+
+        for (int row = 0; row < rows.length; row++) {
+            if (rows[row].length() != columns)
+                throw new IllegalArgumentException("Every row of the mask must have " + columns + " columns, found: "
+                        + rows[row].length());
+
+            for (int column = 0; column < columns; column++) {
+                char c = rows[row].charAt(column);
+
+                if (c == 'x' || c == 'X')
+                    slots[length++] = row * columns + column;
+            }
+        }
+
+        return new SlotPath(Arrays.copyOf(slots, length));
+    }
+
+    public int length() { return slots.length; }
+
+    /**
+     * Returns the slot at an index of the path
+     * @param index the index in the path
+     * @return the slot index, row * columns + column
+     */
+    public int get(int index) { return slots[index]; }
+
+    /**
+     * Returns the index of a slot in the path
+     * @param slot the slot index
+     * @return the index in the path, or -1 if the path does not go through the slot
+     */
+    public int indexOf(int slot) {
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] == slot)
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns this path without the blacklisted slots, cached for every identical path and blacklist
+     * @param blacklist bitset of the blacklisted slot indices
+     * @return the filtered path
+     */
+    SlotPath without(long[] blacklist) {
+        if (isEmpty(blacklist))
+            return this;
+
+        FilterKey key = new FilterKey(slots, blacklist.clone());
+        SlotPath path = FILTERED_PATHS.get(key);
+
+        if (path != null)
+            return path;
+
+        if (FILTERED_PATHS.size() >= MAX_CACHED_FILTERS)
+            FILTERED_PATHS.clear();
+
+        int[] filtered = new int[slots.length];
+        int length = 0;
+
+        for (int slot : slots) {
+            if (!isSet(blacklist, slot))
+                filtered[length++] = slot;
+        }
+
+        path = new SlotPath(Arrays.copyOf(filtered, length));
+        FILTERED_PATHS.put(key, path);
+
+        return path;
+    }
+
+    static boolean isSet(long[] bits, int slot) {
+        return slot >>> 6 < bits.length && (bits[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private static boolean isEmpty(long[] bits) {
+        for (long word : bits) {
+            if (word != 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    private static int[] compile(SlotIterator.Type type, int rows, int columns) {
+        int[] slots = new int[rows * columns];
+        int i = 0;
+
+        switch (type) {
+            case HORIZONTAL -> {
+                for (int row = 0; row < rows; row++)
+                    for (int column = 0; column < columns; column++)
+                        slots[i++] = row * columns + column;
+            }
+            case VERTICAL -> {
+                for (int column = 0; column < columns; column++)
+                    for (int row = 0; row < rows; row++)
+                        slots[i++] = row * columns + column;
+            }
+            case SNAKE -> {
+                for (int row = 0; row < rows; row++) {
+                    for (int column = 0; column < columns; column++) {
+                        int snakeColumn = row % 2 == 0 ? column : columns - 1 - column;
+                        slots[i++] = row * columns + snakeColumn;
+                    }
+                }
+            }
+            case SPIRAL -> {
+                int top = 0, bottom = rows - 1, left = 0, right = columns - 1;
+
+                while (top <= bottom && left <= right) {
+                    for (int column = left; column <= right; column++)
+                        slots[i++] = top * columns + column;
+                    for (int row = top + 1; row <= bottom; row++)
+                        slots[i++] = row * columns + right;
+
+                    if (top < bottom)
+                        for (int column = right - 1; column >= left; column--)
+                            slots[i++] = bottom * columns + column;
+                    if (left < right)
+                        for (int row = bottom - 1; row > top; row--)
+                            slots[i++] = row * columns + left;
+
+                    top++;
+                    bottom--;
+                    left++;
+                    right--;
+                }
+            }
+        }
+
+        return slots;
+    }
+
+    private record TypeKey(SlotIterator.Type type, int rows, int columns) {}
+
+    private record FilterKey(int[] slots, long[] blacklist) {
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof FilterKey other))
+                return false;
+
+            return Arrays.equals(slots, other.slots) && Arrays.equals(blacklist, other.blacklist);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(slots) + Arrays.hashCode(blacklist);
+        }
+
+    }
+
+}
@@ -2,8 +2,19 @@ package at.noahb.smartinvs.content;
 
 public class SlotPos {
 
-    int row;
-    int column;
+    // Shared instances for the positions of the largest chest inventory
+    private static final int CACHED_ROWS = 6;
+    private static final int CACHED_COLUMNS = 9;
+    private static final SlotPos[] CACHE = new SlotPos[CACHED_ROWS * CACHED_COLUMNS];
+
+    static {
+        for (int row = 0; row < CACHED_ROWS; row++)
+            for (int column = 0; column < CACHED_COLUMNS; column++)
+                CACHE[row * CACHED_COLUMNS + column] = new SlotPos(row, column);
+    }
+
+    private final int row;
+    private final int column;
 
     public SlotPos(int row, int column) {
         this.row = row;
@@ -30,10 +41,38 @@ public class SlotPos {
         return result;
     }
 
+    /**
+     * Returns the slot pos of a position, cached for the positions of a 6 rows chest
+     * @param row row number
+     * @param column column number
+     * @return the slot pos
+     */
     public static SlotPos of(int row, int column) {
+        if (row >= 0 && row < CACHED_ROWS && column >= 0 && column < CACHED_COLUMNS)
+            return CACHE[row * CACHED_COLUMNS + column];
+
         return new SlotPos(row, column);
     }
 
+    /**
+     * Returns the slot pos of a slot index
+     * @param slot slot index, row * columns + column
+     * @param columns column count of the inventory
+     * @return the slot pos
+     */
+    public static SlotPos ofSlot(int slot, int columns) {
+        return of(slot / columns, slot % columns);
+    }
+
+    /**
+     * Returns the slot index of this position
+     * @param columns column count of the inventory
+     * @return the slot index, row * columns + column
+     */
+    public int toSlot(int columns) {
+        return row * columns + column;
+    }
+
     public int getRow() {
         return row;
     }
@@ -1,10 +1,10 @@
 package at.noahb.smartinvs.opener;
 
 import at.noahb.smartinvs.SmartInventory;
+import at.noahb.smartinvs.SmartInventoryHolder;
+import at.noahb.smartinvs.content.InventoryContents;
 import com.google.common.base.Preconditions;
 import at.noahb.smartinvs.InventoryManager;
-import net.kyori.adventure.text.Component;
-import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.inventory.Inventory;
@@ -19,9 +19,11 @@ public class ChestInventoryOpener implements InventoryOpener {
                 "The row count for the chest inventory must be between 1 and 6, found: %s", inv.getRows());
 
         InventoryManager manager = inv.getManager();
-        Inventory handle = Bukkit.createInventory(player, inv.getRows() * inv.getColumns(), Component.text(inv.getTitle()));
+        InventoryContents contents = manager.getContents(player)
+                .orElseThrow(() -> new IllegalStateException("No contents found for the player " + player.getName()));
 
-        manager.getContents(player).ifPresent(inventoryContents -> fill(handle, inventoryContents));
+        Inventory handle = SmartInventoryHolder.createInventory(inv, contents, inv.getRows() * inv.getColumns());
+        fill(handle, contents);
 
         player.openInventory(handle);
         return handle;
@@ -3,14 +3,18 @@ package at.noahb.smartinvs.opener;
 import at.noahb.smartinvs.ClickableItem;
 import at.noahb.smartinvs.SmartInventory;
 import at.noahb.smartinvs.content.InventoryContents;
+import at.noahb.smartinvs.content.InventoryTemplate;
+import at.noahb.smartinvs.content.SlotLayout;
 import org.bukkit.entity.Player;
 import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
 
 public interface InventoryOpener {
 
     /**
-     * Opens the inventory for a player
+     * Opens the inventory for a player, the opened inventory must be created
+     * with {@link at.noahb.smartinvs.SmartInventoryHolder#createInventory}
      * @param inv the inventory the player should be opened
      * @param player the player the inventory should be opened
      * @return the inventory which gets opened
@@ -24,15 +28,36 @@ public interface InventoryOpener {
      */
     boolean supports(InventoryType type);
 
+    /**
+     * Fills an inventory with contents, starting from the template of the inventory
+     * and placing the items at the slots given by the layout of the inventory
+     * @param handle the inventory to fill
+     * @param contents the contents to fill the inventory with
+     */
     default void fill(Inventory handle, InventoryContents contents) {
-        ClickableItem[][] items = contents.all();
+        SmartInventory inv = contents.inventory();
+        SlotLayout layout = inv.getLayout();
+
+        InventoryTemplate template = inv.getTemplate().orElse(null);
+        ItemStack[] stacks = template != null ? template.stacks(handle.getSize()) : new ItemStack[handle.getSize()];
+
+        for(int index = 0; index < inv.getRows() * inv.getColumns(); index++) {
+            if(!layout.isValid(index))
+                continue;
 
-        for(int row = 0; row < items.length; row++) {
-            for(int column = 0; column < items[row].length; column++) {
-                if(items[row][column] != null)
-                    handle.setItem(9 * row + column, items[row][column].getItem());
-            }
+            ClickableItem item = contents.getOrNull(index);
+
+            // Template items are already in the stacks
+            if(template != null && item == template.get(index))
+                continue;
+
+            int slot = layout.toSlot(index);
+
+            if(slot < stacks.length)
+                stacks[slot] = item != null ? item.getItem() : null;
         }
+
+        handle.setContents(stacks);
     }
 
 }
@@ -3,8 +3,8 @@ package at.noahb.smartinvs.opener;
 import com.google.common.collect.ImmutableList;
 import at.noahb.smartinvs.InventoryManager;
 import at.noahb.smartinvs.SmartInventory;
-import net.kyori.adventure.text.Component;
-import org.bukkit.Bukkit;
+import at.noahb.smartinvs.SmartInventoryHolder;
+import at.noahb.smartinvs.content.InventoryContents;
 import org.bukkit.entity.Player;
 import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.inventory.Inventory;
@@ -28,9 +28,11 @@ public class SpecialInventoryOpener implements InventoryOpener {
     @Override
     public Inventory open(SmartInventory inv, Player player) {
         InventoryManager manager = inv.getManager();
-        Inventory handle = Bukkit.createInventory(player, inv.getType(), Component.text(inv.getTitle()));
+        InventoryContents contents = manager.getContents(player)
+                .orElseThrow(() -> new IllegalStateException("No contents found for the player " + player.getName()));
 
-        manager.getContents(player).ifPresent(inventoryContents -> fill(handle, inventoryContents));
+        Inventory handle = SmartInventoryHolder.createInventory(inv, contents, inv.getType());
+        fill(handle, contents);
 
         player.openInventory(handle);
         return handle;